@@ -16,27 +16,61 @@
 package com.blacklocus.qs.aws.sqs;
 
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.blacklocus.qs.BatchDeletingMessageProvider;
+import com.blacklocus.qs.LeaseRenewingMessageProvider;
 import com.blacklocus.qs.Message;
-import com.blacklocus.qs.MessageProvider;
+import com.blacklocus.qs.MessageGoneException;
+import com.blacklocus.qs.QueueItemReleaser;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Provide Message instances from an SQS queue.
+ * Provide Message instances from an SQS queue. As a {@link QueueItemReleaser}, makes messages visible again
+ * immediately, see {@link com.blacklocus.qs.QueueReader#withReleaser(QueueItemReleaser)}. Leases are SQS visibility
+ * timeouts, see {@link com.blacklocus.qs.LeaseRenewer}.
  */
-public class AmazonSQSMessageProvider implements MessageProvider {
+public class AmazonSQSMessageProvider
+        implements BatchDeletingMessageProvider, LeaseRenewingMessageProvider, QueueItemReleaser<Message> {
 
     private static final Logger LOG = LoggerFactory.getLogger(AmazonSQSMessageProvider.class);
 
+    /**
+     * the most entries SQS accepts in one DeleteMessageBatch request
+     */
+    public static final int MAX_DELETE_BATCH = 10;
+
+    /**
+     * the most entries SQS accepts in one ChangeMessageVisibilityBatch request
+     */
+    public static final int MAX_VISIBILITY_BATCH = 10;
+
+    /**
+     * the longest visibility timeout SQS accepts, 12 hours
+     */
+    public static final int MAX_VISIBILITY_TIMEOUT_SECONDS = 43200;
+
+    private static final String RECEIPT_HANDLE_IS_INVALID = "ReceiptHandleIsInvalid";
+
     private AmazonSQS sqs;
     private String queueUrl;
 
@@ -68,12 +102,15 @@ public class AmazonSQSMessageProvider implements MessageProvider {
                     .withAttributeNames("SentTimestamp")
                     .withMaxNumberOfMessages(10);
             List<com.amazonaws.services.sqs.model.Message> sqsMessages = sqs.receiveMessage(receiveMessageRequest).getMessages();
-            return Lists.transform(sqsMessages, new Function<com.amazonaws.services.sqs.model.Message, Message>() {
-                @Override
-                public Message apply(com.amazonaws.services.sqs.model.Message input) {
-                    return input != null ? new AmazonSQSMessage(input) : null;
-                }
-            });
+            // copied rather than a lazy view, so that each pass over the batch sees the same Message instances, which
+            // is what identity-keyed bookkeeping such as LeaseRenewer relies on
+            return new ArrayList<Message>(Lists.transform(sqsMessages,
+                    new Function<com.amazonaws.services.sqs.model.Message, Message>() {
+                        @Override
+                        public Message apply(com.amazonaws.services.sqs.model.Message input) {
+                            return input != null ? new AmazonSQSMessage(input) : null;
+                        }
+                    }));
         } catch (Throwable t) {
             LOG.error("An error occurred while receiving an SQS message: {}", t);
             // sleep to avoid busy wait loop on a receive error
@@ -106,4 +143,93 @@ public class AmazonSQSMessageProvider implements MessageProvider {
     public void delete(Message message) {
         sqs.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceipt()));
     }
+
+    /**
+     * Delete the messages with DeleteMessageBatch requests of up to {@link #MAX_DELETE_BATCH} messages each.
+     */
+    @Override
+    public Map<Message, Exception> deleteBatch(Collection<Message> messages) {
+        Map<Message, Exception> failures = new HashMap<Message, Exception>();
+        List<Message> chunk = new ArrayList<Message>(MAX_DELETE_BATCH);
+        for (Iterator<Message> it = messages.iterator(); it.hasNext(); ) {
+            chunk.add(it.next());
+            if (chunk.size() == MAX_DELETE_BATCH || !it.hasNext()) {
+                deleteChunk(chunk, failures);
+                chunk.clear();
+            }
+        }
+        return failures;
+    }
+
+    private void deleteChunk(List<Message> chunk, Map<Message, Exception> failures) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            // entry ids only need to be unique within the request, so index them
+            entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), chunk.get(i).getReceipt()));
+        }
+        try {
+            DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+            for (BatchResultErrorEntry error : result.getFailed()) {
+                failures.put(chunk.get(Integer.parseInt(error.getId())), new RuntimeException(
+                        "SQS failed to delete message: " + error.getCode() + " " + error.getMessage()));
+            }
+        } catch (Exception e) {
+            for (Message message : chunk) {
+                failures.put(message, e);
+            }
+        }
+    }
+
+    /**
+     * Reset the visibility timeout of the messages to 0 so that any consumer may receive them right away, with
+     * ChangeMessageVisibilityBatch requests of up to {@link #MAX_VISIBILITY_BATCH} messages each. Failures are logged,
+     * and such messages become visible again when their original visibility timeout runs out.
+     */
+    @Override
+    public void release(Collection<? extends Message> messages) {
+        Map<Message, Exception> failures = changeVisibility(messages, 0);
+        for (Map.Entry<Message, Exception> failure : failures.entrySet()) {
+            LOG.warn("SQS failed to release message {}", failure.getKey(), failure.getValue());
+        }
+    }
+
+    /**
+     * Set the visibility timeout of the messages to the lease, rounded up to whole seconds and capped at
+     * {@link #MAX_VISIBILITY_TIMEOUT_SECONDS}, with ChangeMessageVisibilityBatch requests of up to
+     * {@link #MAX_VISIBILITY_BATCH} messages each.
+     */
+    @Override
+    public Map<Message, Exception> renewLeases(Collection<Message> messages, long lease, TimeUnit unit) {
+        long seconds = (unit.toMillis(lease) + 999) / 1000;
+        return changeVisibility(messages, (int) Math.min(seconds, MAX_VISIBILITY_TIMEOUT_SECONDS));
+    }
+
+    private Map<Message, Exception> changeVisibility(Collection<? extends Message> messages, int timeoutSeconds) {
+        Map<Message, Exception> failures = new HashMap<Message, Exception>();
+        for (List<? extends Message> chunk : Lists.partition(new ArrayList<Message>(messages), MAX_VISIBILITY_BATCH)) {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries =
+                    new ArrayList<ChangeMessageVisibilityBatchRequestEntry>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), chunk.get(i).getReceipt())
+                        .withVisibilityTimeout(timeoutSeconds));
+            }
+            try {
+                ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(
+                        new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+                for (BatchResultErrorEntry error : result.getFailed()) {
+                    String reason = "SQS failed to change message visibility: " + error.getCode() + " " +
+                            error.getMessage();
+                    // what SQS answers for the receipt of a message deleted meanwhile
+                    failures.put(chunk.get(Integer.parseInt(error.getId())),
+                            RECEIPT_HANDLE_IS_INVALID.equals(error.getCode()) ?
+                                    new MessageGoneException(reason) : new RuntimeException(reason));
+                }
+            } catch (Exception e) {
+                for (Message message : chunk) {
+                    failures.put(message, e);
+                }
+            }
+        }
+        return failures;
+    }
 }
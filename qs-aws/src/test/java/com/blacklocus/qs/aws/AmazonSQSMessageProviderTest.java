@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs.aws;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.blacklocus.qs.AbstractMessageHandler;
+import com.blacklocus.qs.LeaseRenewer;
+import com.blacklocus.qs.Message;
+import com.blacklocus.qs.MessageGoneException;
+import com.blacklocus.qs.MessageQueueReader;
+import com.blacklocus.qs.aws.sqs.AmazonSQSMessage;
+import com.blacklocus.qs.aws.sqs.AmazonSQSMessageProvider;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AmazonSQSMessageProviderTest {
+
+    @Test
+    public void deleteBatchChunksAndMapsFailures() {
+        AmazonSQS amazonSQS = mock(AmazonSQS.class);
+        when(amazonSQS.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenAnswer(new Answer<DeleteMessageBatchResult>() {
+            @Override
+            public DeleteMessageBatchResult answer(InvocationOnMock invocation) throws Throwable {
+                DeleteMessageBatchRequest request = (DeleteMessageBatchRequest) invocation.getArguments()[0];
+                Assert.assertTrue(request.getEntries().size() <= AmazonSQSMessageProvider.MAX_DELETE_BATCH);
+                DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+                if (request.getEntries().get(0).getReceiptHandle().equals("receipt-10")) {
+                    // fail the second entry of the second request
+                    result.withFailed(new BatchResultErrorEntry().withId(request.getEntries().get(1).getId())
+                            .withCode("ReceiptHandleIsInvalid").withMessage("expired"));
+                }
+                return result;
+            }
+        });
+
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 23; i++) {
+            messages.add(new AmazonSQSMessage(new com.amazonaws.services.sqs.model.Message()
+                    .withMessageId("id-" + i).withReceiptHandle("receipt-" + i)));
+        }
+        Map<Message, Exception> failures = new AmazonSQSMessageProvider(amazonSQS, "test").deleteBatch(messages);
+
+        verify(amazonSQS, times(3)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        Assert.assertEquals(1, failures.size());
+        Assert.assertEquals("id-11", failures.keySet().iterator().next().getId());
+    }
+
+    @Test
+    public void releaseResetsVisibilityInChunks() {
+        AmazonSQS amazonSQS = mock(AmazonSQS.class);
+        when(amazonSQS.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+                .thenReturn(new ChangeMessageVisibilityBatchResult());
+
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 12; i++) {
+            messages.add(new AmazonSQSMessage(new com.amazonaws.services.sqs.model.Message()
+                    .withMessageId("id-" + i).withReceiptHandle("receipt-" + i)));
+        }
+        new AmazonSQSMessageProvider(amazonSQS, "test").release(messages);
+
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> requests =
+                ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(amazonSQS, times(2)).changeMessageVisibilityBatch(requests.capture());
+        Assert.assertEquals(10, requests.getAllValues().get(0).getEntries().size());
+        Assert.assertEquals(2, requests.getAllValues().get(1).getEntries().size());
+        for (ChangeMessageVisibilityBatchRequest request : requests.getAllValues()) {
+            for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+                Assert.assertEquals(Integer.valueOf(0), entry.getVisibilityTimeout());
+            }
+        }
+    }
+
+    @Test
+    public void renewLeasesExtendsVisibilityInWholeSecondsAndMapsFailures() {
+        AmazonSQS amazonSQS = mock(AmazonSQS.class);
+        when(amazonSQS.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+                .thenReturn(new ChangeMessageVisibilityBatchResult().withFailed(new BatchResultErrorEntry()
+                        .withId("1").withCode("ReceiptHandleIsInvalid").withMessage("deleted")));
+
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 2; i++) {
+            messages.add(new AmazonSQSMessage(new com.amazonaws.services.sqs.model.Message()
+                    .withMessageId("id-" + i).withReceiptHandle("receipt-" + i)));
+        }
+        Map<Message, Exception> failures = new AmazonSQSMessageProvider(amazonSQS, "test")
+                .renewLeases(messages, 1500, TimeUnit.MILLISECONDS);
+
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> request =
+                ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(amazonSQS).changeMessageVisibilityBatch(request.capture());
+        Assert.assertEquals(Integer.valueOf(2), request.getValue().getEntries().get(0).getVisibilityTimeout());
+        Assert.assertEquals(1, failures.size());
+        Map.Entry<Message, Exception> failure = failures.entrySet().iterator().next();
+        Assert.assertEquals("id-1", failure.getKey().getId());
+        Assert.assertTrue(failure.getValue() instanceof MessageGoneException);
+    }
+
+    @Test
+    public void renewLeasesCapsVisibilityAtTheSqsMaximum() {
+        AmazonSQS amazonSQS = mock(AmazonSQS.class);
+        when(amazonSQS.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+                .thenReturn(new ChangeMessageVisibilityBatchResult());
+
+        List<Message> messages = new ArrayList<Message>();
+        messages.add(new AmazonSQSMessage(new com.amazonaws.services.sqs.model.Message()
+                .withMessageId("id-0").withReceiptHandle("receipt-0")));
+        new AmazonSQSMessageProvider(amazonSQS, "test").renewLeases(messages, 1, TimeUnit.DAYS);
+
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> request =
+                ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(amazonSQS).changeMessageVisibilityBatch(request.capture());
+        Assert.assertEquals(Integer.valueOf(AmazonSQSMessageProvider.MAX_VISIBILITY_TIMEOUT_SECONDS),
+                request.getValue().getEntries().get(0).getVisibilityTimeout());
+    }
+
+    @Test
+    public void leasesOfReceivedMessagesAreUntrackedOnceFinished() throws Exception {
+        AmazonSQS amazonSQS = mock(AmazonSQS.class);
+        when(amazonSQS.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(
+                        new com.amazonaws.services.sqs.model.Message().withMessageId("ok").withReceiptHandle("r-ok")
+                                .withBody("ok"),
+                        new com.amazonaws.services.sqs.model.Message().withMessageId("bad").withReceiptHandle("r-bad")
+                                .withBody("bad")))
+                .thenReturn(new ReceiveMessageResult());
+        when(amazonSQS.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+                .thenReturn(new ChangeMessageVisibilityBatchResult());
+        AmazonSQSMessageProvider provider = new AmazonSQSMessageProvider(amazonSQS, "test");
+        LeaseRenewer renewer = new LeaseRenewer(provider, 60, TimeUnit.SECONDS);
+
+        final CountDownLatch finished = new CountDownLatch(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        MessageQueueReader<String, String> reader = new MessageQueueReader<String, String>(provider,
+                new AbstractMessageHandler<String, String>() {
+                    @Override
+                    public String convert(Message message) {
+                        return message.getBody();
+                    }
+
+                    @Override
+                    public String process(String body) {
+                        if (body.equals("bad")) {
+                            throw new IllegalStateException("unlucky");
+                        }
+                        return body;
+                    }
+
+                    @Override
+                    public void onComplete(Message message, String body, String result) {
+                        finished.countDown();
+                    }
+                }, executor, 10).withLeaseRenewer(renewer);
+        Thread readerThread = new Thread(reader);
+        readerThread.start();
+        try {
+            Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(reader.shutdown(5, TimeUnit.SECONDS));
+
+            // the failed message as much as the handled one, or it would be held until the end of time
+            Assert.assertEquals(0, reader.getOutstanding());
+            Assert.assertEquals(0, renewer.getTracked());
+        } finally {
+            renewer.close();
+            executor.shutdown();
+            readerThread.interrupt();
+        }
+    }
+}
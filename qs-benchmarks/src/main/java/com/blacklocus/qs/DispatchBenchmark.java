@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-item cost of {@link QueueReader} dispatch, standard versus lean. The executor runs tasks on the calling thread
+ * so that only the reader's own dispatch overhead is measured. Run with <code>-prof gc</code> and compare
+ * <code>gc.alloc.rate.norm</code> to see allocation per item.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(DispatchBenchmark.BATCH_SIZE)
+public class DispatchBenchmark {
+
+    static final int BATCH_SIZE = 10;
+
+    @Param({"standard", "lean"})
+    public String dispatch;
+
+    private QueueReader<Integer, Integer, Integer> reader;
+    private List<Integer> batch;
+
+    @Setup
+    public void setup() {
+        reader = new QueueReader<Integer, Integer, Integer>(
+                Collections.<Collection<Integer>>emptyList(),
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer convertedQueueItem) {
+                        return convertedQueueItem;
+                    }
+                },
+                MoreExecutors.sameThreadExecutor(),
+                0
+        );
+        if ("lean".equals(dispatch)) {
+            reader.withLeanDispatch(QueueReader.DEFAULT_CARRIER_POOL_SIZE);
+        }
+
+        batch = new ArrayList<Integer>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(i);
+        }
+    }
+
+    @Benchmark
+    public void dispatchBatch() {
+        reader.dispatchItems(batch);
+    }
+}
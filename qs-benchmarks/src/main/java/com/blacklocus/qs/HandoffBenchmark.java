@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip latency of handing one item to a {@link QueueReader} running on its own thread: the benchmark thread puts
+ * an item into the provider and spins until the handler has seen it. The return path is a single volatile write, so
+ * the result is dominated by the provider handoff and the reader waking up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+
+    @Param({"external", "ringBufferPark", "ringBufferSpin"})
+    public String provider;
+
+    private ExternalQueueItemProvider<Long> external;
+    private RingBufferQueueItemProvider<Long> ringBuffer;
+    private Thread readerThread;
+    private volatile long seen = -1;
+    private long next = 0;
+
+    @Setup
+    public void setup() {
+        QueueItemProvider<Long> items;
+        if ("external".equals(provider)) {
+            items = external = new ExternalQueueItemProvider<Long>(
+                    new LinkedBlockingQueue<Long>(), 100L, TimeUnit.MILLISECONDS, 16);
+        } else {
+            items = ringBuffer = new RingBufferQueueItemProvider<Long>(1024, 100L, TimeUnit.MILLISECONDS, 16,
+                    "ringBufferSpin".equals(provider) ? RingBufferQueueItemProvider.WaitStrategy.BUSY_SPIN
+                            : RingBufferQueueItemProvider.WaitStrategy.PARK);
+        }
+        QueueReader<Long, Long, Long> reader = new QueueReader<Long, Long, Long>(
+                items,
+                new AbstractQueueItemHandler<Long, Long, Long>() {
+                    @Override
+                    public Long convert(Long queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Long process(Long convertedQueueItem) {
+                        seen = convertedQueueItem;
+                        return convertedQueueItem;
+                    }
+                },
+                MoreExecutors.sameThreadExecutor(),
+                0
+        ).withLeanDispatch(QueueReader.DEFAULT_CARRIER_POOL_SIZE);
+        readerThread = new Thread(reader, "qs-handoff-reader");
+        readerThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        if (ringBuffer != null) {
+            ringBuffer.close();
+        }
+        readerThread.interrupt();
+        readerThread.join();
+    }
+
+    @Benchmark
+    public long roundTrip() throws InterruptedException {
+        long item = next++;
+        if (external != null) {
+            external.put(item);
+        } else {
+            ringBuffer.put(item);
+        }
+        while (seen != item) {
+            // spin
+        }
+        return item;
+    }
+}
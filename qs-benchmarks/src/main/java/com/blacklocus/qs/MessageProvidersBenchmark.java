@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message cost of {@link MessageProviders} decorator chains over an in-memory provider that generates batches of
+ * messages with unique ids. <code>none</code> is the cost of the generating provider itself, so the overhead of a
+ * chain is its score minus that of <code>none</code>. Each operation is one message read through the chain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MessageProvidersBenchmark.BATCH_SIZE)
+public class MessageProvidersBenchmark {
+
+    static final int BATCH_SIZE = 10;
+
+    @Param({"none", "safe", "default", "filtered", "deduplicating", "coalescing", "rateLimited", "merged",
+            "prefetching", "stacked"})
+    public String chain;
+
+    private MessageProvider provider;
+
+    @Setup
+    public void setup() {
+        MessageProvider base = new GeneratingMessageProvider();
+        if ("none".equals(chain)) {
+            provider = base;
+        } else if ("safe".equals(chain)) {
+            provider = MessageProviders.newSafeMessageProvider(base);
+        } else if ("default".equals(chain)) {
+            provider = MessageProviders.newDefaultMessageProvider(base, 10);
+        } else if ("filtered".equals(chain)) {
+            provider = MessageProviders.filtered(base, Predicates.<Message>alwaysTrue());
+        } else if ("deduplicating".equals(chain)) {
+            provider = MessageProviders.deduplicating(base, 1 << 20, TimeUnit.MINUTES.toMillis(1));
+        } else if ("coalescing".equals(chain)) {
+            provider = MessageProviders.coalescing(base, new Function<Message, String>() {
+                @Override
+                public String apply(Message input) {
+                    return input.getId();
+                }
+            }, 0);
+        } else if ("rateLimited".equals(chain)) {
+            // never actually limits, measuring the metering alone
+            provider = MessageProviders.rateLimited(base, 1e12, 1 << 20);
+        } else if ("merged".equals(chain)) {
+            Map<MessageProvider, Integer> weights = new LinkedHashMap<MessageProvider, Integer>();
+            weights.put(base, 1);
+            weights.put(new GeneratingMessageProvider(), 1);
+            provider = MessageProviders.merged(weights);
+        } else if ("prefetching".equals(chain)) {
+            provider = MessageProviders.prefetching(base, 4);
+        } else if ("stacked".equals(chain)) {
+            provider = MessageProviders.newSafeMessageProvider(
+                    MessageProviders.deduplicating(
+                            MessageProviders.rateLimited(base, 1e12, 1 << 20), 1 << 20, TimeUnit.MINUTES.toMillis(1)));
+        } else {
+            throw new IllegalArgumentException(chain);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (provider instanceof Closeable) {
+            ((Closeable) provider).close();
+        }
+    }
+
+    @Benchmark
+    public void next(Blackhole blackhole) {
+        for (Message message : provider.next()) {
+            blackhole.consume(message);
+        }
+    }
+
+    /**
+     * Never runs dry. Not thread-safe, but prefetching only calls it from its own thread.
+     */
+    static class GeneratingMessageProvider implements MessageProvider {
+
+        private long nextId = 0;
+
+        @Override
+        public Iterator<Collection<Message>> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public Collection<Message> next() {
+            List<Message> batch = new ArrayList<Message>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(new SimpleMessage(Long.toString(nextId++)));
+            }
+            return batch;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void delete(Message message) {
+            // nothing to delete
+        }
+    }
+
+    static class SimpleMessage implements Message {
+
+        private final String id;
+
+        SimpleMessage(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String getReceipt() {
+            return id;
+        }
+
+        @Override
+        public String getBody() {
+            return id;
+        }
+
+        @Override
+        public Map<String, String> getAttributes() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link QueueReader} throughput over an in-memory provider, by executor type and dispatch path. Each
+ * operation is one queue item read, dispatched and handled. Handling burns a little CPU so that executor threads have
+ * something to contend over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(ReaderThroughputBenchmark.ITEMS)
+public class ReaderThroughputBenchmark {
+
+    static final int ITEMS = 10000;
+    static final int BATCH_SIZE = 10;
+    static final long WORK_TOKENS = 50;
+
+    @Param({"sameThread", "fixed", "cached"})
+    public String executorType;
+
+    @Param({"standard", "lean"})
+    public String dispatch;
+
+    private ExecutorService executor;
+    private List<Collection<Integer>> batches;
+
+    @Setup
+    public void setup() {
+        if ("sameThread".equals(executorType)) {
+            executor = MoreExecutors.sameThreadExecutor();
+        } else if ("fixed".equals(executorType)) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        } else {
+            executor = Executors.newCachedThreadPool();
+        }
+        batches = new ArrayList<Collection<Integer>>(ITEMS / BATCH_SIZE);
+        for (int i = 0; i < ITEMS; i += BATCH_SIZE) {
+            List<Integer> batch = new ArrayList<Integer>(BATCH_SIZE);
+            for (int j = i; j < i + BATCH_SIZE; j++) {
+                batch.add(j);
+            }
+            batches.add(batch);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void readAll() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(ITEMS);
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(
+                batches,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer convertedQueueItem) {
+                        Blackhole.consumeCPU(WORK_TOKENS);
+                        return convertedQueueItem;
+                    }
+
+                    @Override
+                    public void onComplete(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                        done.countDown();
+                    }
+                },
+                executor,
+                0
+        );
+        if ("lean".equals(dispatch)) {
+            reader.withLeanDispatch(QueueReader.DEFAULT_CARRIER_POOL_SIZE);
+        }
+        reader.run();
+        done.await();
+    }
+}
@@ -15,31 +15,29 @@
  */
 package com.blacklocus.misc;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
+ * Runs a runnable over and over until interrupted, restarting it with backoff after failures.
+ *
  * @author Jason Dunkelberger (dirkraft)
+ * @see Supervisor
  */
 public class InfiniteRunnable implements Runnable {
 
-    private final Logger LOG;
-
-    private final Runnable runnable;
+    private final Supervisor supervisor;
 
     public InfiniteRunnable(Runnable runnable) {
-        this.runnable = runnable;
-        this.LOG = LoggerFactory.getLogger(runnable.getClass());
+        this.supervisor = new Supervisor(runnable);
+    }
+
+    /**
+     * @return the supervisor doing the restarting, to configure or query it
+     */
+    public Supervisor getSupervisor() {
+        return supervisor;
     }
 
     @Override
     public void run() {
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                runnable.run();
-            } catch (Throwable t) {
-                LOG.error("Runnable excepted. Restarting it." + t);
-            }
-        }
+        supervisor.run();
     }
 }
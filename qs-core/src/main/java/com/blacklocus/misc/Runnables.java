@@ -38,20 +38,19 @@ public class Runnables {
         };
     }
 
+    /**
+     * @return a runnable which restarts the given one until interrupted, with default backoff after failures
+     * @see #newSupervisor(Runnable)
+     */
     public static Runnable newInfiniteLoggingRunnable(final Runnable runnable) {
-        return new Runnable() {
-            final Logger LOG = LoggerFactory.getLogger(runnable.getClass());
+        return newSupervisor(runnable);
+    }
 
-            @Override
-            public void run() {
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        runnable.run();
-                    } catch (Throwable t) {
-                        LOG.error("Runnable excepted. Restarting it." + t);
-                    }
-                }
-            }
-        };
+    /**
+     * @return a {@link Supervisor} with default backoff which restarts the runnable until interrupted, to configure
+     * further or query
+     */
+    public static Supervisor newSupervisor(Runnable runnable) {
+        return new Supervisor(runnable);
     }
 }
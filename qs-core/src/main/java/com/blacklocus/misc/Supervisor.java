@@ -0,0 +1,226 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.misc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a runnable over and over until interrupted, restarting it after each failure. Consecutive failures are spaced
+ * out by a backoff that doubles up to a cap, so that a runnable failing on every attempt, e.g. because the service it
+ * talks to is down, neither pins a core nor floods the log. A run that returns normally resets the backoff.
+ * <p/>
+ * An {@link ExceptingRunnable} is supervised through its {@link ExceptingRunnable#go()}, so that its failures count
+ * as such rather than being logged and swallowed by its run().
+ */
+public class Supervisor implements Runnable {
+
+    /**
+     * default wait in ms before restarting after the first of consecutive failures
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 100;
+
+    /**
+     * default longest wait in ms before restarting after a failure
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30 * 1000;
+
+    /**
+     * Decides whether a supervisor stops restarting its runnable.
+     */
+    public static interface GiveUpPolicy {
+
+        /**
+         * Called after each failure, before backing off.
+         *
+         * @param supervisor whose counters reflect the failure
+         * @param failure    what the runnable threw
+         * @return true to stop restarting, which ends {@link Supervisor#run()}
+         */
+        boolean giveUp(Supervisor supervisor, Throwable failure);
+    }
+
+    /**
+     * restart forever, the default
+     */
+    public static final GiveUpPolicy NEVER_GIVE_UP = new GiveUpPolicy() {
+        @Override
+        public boolean giveUp(Supervisor supervisor, Throwable failure) {
+            return false;
+        }
+    };
+
+    /**
+     * @return a policy that gives up once the runnable has failed this many times in a row
+     */
+    public static GiveUpPolicy giveUpAfter(final int consecutiveFailures) {
+        if (consecutiveFailures < 1) {
+            throw new IllegalArgumentException("consecutiveFailures must be at least 1, was " + consecutiveFailures);
+        }
+        return new GiveUpPolicy() {
+            @Override
+            public boolean giveUp(Supervisor supervisor, Throwable failure) {
+                return supervisor.getConsecutiveFailures() >= consecutiveFailures;
+            }
+        };
+    }
+
+    private final Logger LOG;
+
+    private final Runnable runnable;
+
+    private long initialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private long maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+    private GiveUpPolicy giveUpPolicy = NEVER_GIVE_UP;
+
+    // only written by the supervising thread, volatile so that they may be queried from any other
+    private volatile long restarts = 0;
+    private volatile long failures = 0;
+    private volatile int consecutiveFailures = 0;
+    private volatile long lastFailureTime = 0;
+    private volatile Throwable lastFailure;
+    private volatile boolean givenUp = false;
+
+    /**
+     * @param runnable to run and restart, logged under its own class
+     */
+    public Supervisor(Runnable runnable) {
+        this.runnable = runnable;
+        this.LOG = LoggerFactory.getLogger(runnable.getClass());
+    }
+
+    /**
+     * @param initialBackoffMs wait in ms before restarting after the first of consecutive failures, 0 to not back off
+     * @param maxBackoffMs     the longest wait in ms before restarting after a failure
+     * @return this instance for chaining
+     */
+    public Supervisor withBackoff(long initialBackoffMs, long maxBackoffMs) {
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Require 0 <= initialBackoffMs <= maxBackoffMs, was " +
+                    initialBackoffMs + ", " + maxBackoffMs);
+        }
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        return this;
+    }
+
+    /**
+     * @param giveUpPolicy e.g. {@link #giveUpAfter(int)}
+     * @return this instance for chaining
+     */
+    public Supervisor withGiveUpPolicy(GiveUpPolicy giveUpPolicy) {
+        this.giveUpPolicy = giveUpPolicy;
+        return this;
+    }
+
+    @Override
+    public void run() {
+        boolean first = true;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (!first) {
+                ++restarts;
+            }
+            first = false;
+            try {
+                runOnce();
+                consecutiveFailures = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                ++failures;
+                ++consecutiveFailures;
+                lastFailureTime = System.currentTimeMillis();
+                lastFailure = t;
+                if (giveUpPolicy.giveUp(this, t)) {
+                    givenUp = true;
+                    LOG.error("Runnable excepted " + consecutiveFailures + " times in a row. Giving up.", t);
+                    return;
+                }
+                long backoffMs = backoffMs(consecutiveFailures);
+                LOG.error("Runnable excepted " + consecutiveFailures + " times in a row. Restarting it in " +
+                        backoffMs + "ms.", t);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoffMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void runOnce() throws Exception {
+        if (runnable instanceof ExceptingRunnable) {
+            ((ExceptingRunnable) runnable).go();
+        } else {
+            runnable.run();
+        }
+    }
+
+    long backoffMs(int consecutiveFailures) {
+        int shift = Math.min(consecutiveFailures - 1, 30);
+        return initialBackoffMs > maxBackoffMs >> shift ? maxBackoffMs : initialBackoffMs << shift;
+    }
+
+    /**
+     * @return the number of times the runnable was started again, after failing or returning
+     */
+    public long getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * @return the total number of times the runnable failed
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the number of failures since the runnable last returned normally
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return epoch ms of the last failure, 0 if it never failed
+     */
+    public long getLastFailureTime() {
+        return lastFailureTime;
+    }
+
+    /**
+     * @return what the runnable last threw, null if it never failed
+     */
+    public Throwable getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return whether the {@link GiveUpPolicy} ended supervision
+     */
+    public boolean isGivenUp() {
+        return givenUp;
+    }
+
+    @Override
+    public String toString() {
+        return "Supervisor{" + runnable + ", restarts=" + restarts + ", failures=" + failures +
+                ", consecutiveFailures=" + consecutiveFailures + ", givenUp=" + givenUp + '}';
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+/**
+ * Ignores all measurements, for {@link QueueReaderMetrics} that are only interested in some of them.
+ */
+public abstract class AbstractQueueReaderMetrics implements QueueReaderMetrics {
+
+    @Override
+    public void received(int items, long receiveNs) {
+        // do nothing
+    }
+
+    @Override
+    public void idled(long idleNs) {
+        // do nothing
+    }
+
+    @Override
+    public void started(long queuedNs) {
+        // do nothing
+    }
+
+    @Override
+    public void converted(long convertNs) {
+        // do nothing
+    }
+
+    @Override
+    public void processed(long processNs) {
+        // do nothing
+    }
+
+    @Override
+    public void succeeded(int items) {
+        // do nothing
+    }
+
+    @Override
+    public void failed(int items) {
+        // do nothing
+    }
+}
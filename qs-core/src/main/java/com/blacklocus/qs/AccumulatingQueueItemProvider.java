@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects queue items across several {@link QueueItemProvider#next()} calls of the wrapped provider and hands them on
+ * as one batch once <code>maxBatchSize</code> items are collected, or <code>maxDelay</code> has passed since the first
+ * of them arrived. Pair it with a {@link BatchQueueItemHandler} whose sink prefers large batches. Items stay
+ * individually addressable within the batch, so the handler still acknowledges or deletes each on its own.
+ * <p/>
+ * The wrapped provider's <code>next()</code> is not cut short, so a batch may be held for up to <code>maxDelay</code>
+ * plus one such call. Keep provider-side waits, e.g. an SQS long poll, well below <code>maxDelay</code>. A partial
+ * batch is handed on early when the wrapped provider is exhausted, this provider is {@link #close() closed}, or the
+ * reading thread is interrupted, so that a shutting down {@link QueueReader} still dispatches what was collected.
+ *
+ * @param <Q> queue item type
+ */
+public class AccumulatingQueueItemProvider<Q> implements QueueItemProvider<Q>, Closeable {
+
+    /**
+     * longest pause in ms after an empty read from the wrapped provider while a batch is pending
+     */
+    static final long EMPTY_READ_PAUSE_MS = 10;
+
+    private final QueueItemProvider<Q> provider;
+    private final int maxBatchSize;
+    private final long maxDelayNs;
+
+    /**
+     * items received beyond <code>maxBatchSize</code>, which start the next batch
+     */
+    private final Queue<Q> carry = new ArrayDeque<Q>();
+    private long carryArrivedNs;
+    private volatile boolean closed = false;
+
+    /**
+     * @param provider     the provider to collect items from
+     * @param maxBatchSize hand on a batch as soon as this many items are collected
+     * @param maxDelay     hand on a partial batch once its first item has waited this long
+     * @param unit         unit of <code>maxDelay</code>
+     */
+    public AccumulatingQueueItemProvider(QueueItemProvider<Q> provider, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1, was " + maxBatchSize);
+        }
+        this.provider = provider;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNs = unit.toNanos(maxDelay);
+    }
+
+    @Override
+    public Iterator<Collection<Q>> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !carry.isEmpty() || (!closed && provider.hasNext());
+    }
+
+    /**
+     * @return the next batch, or an empty collection if the wrapped provider had nothing to start a batch with
+     */
+    @Override
+    public Collection<Q> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<Q> batch = new ArrayList<Q>(Math.min(maxBatchSize, Math.max(carry.size(), 16)));
+        while (batch.size() < maxBatchSize && !carry.isEmpty()) {
+            batch.add(carry.poll());
+        }
+        long firstArrivedNs = carryArrivedNs;
+        boolean olderCarryLeft = !carry.isEmpty();
+
+        while (batch.size() < maxBatchSize && !closed && !Thread.currentThread().isInterrupted()
+                && provider.hasNext()) {
+            if (!batch.isEmpty() && System.nanoTime() - firstArrivedNs >= maxDelayNs) {
+                break;
+            }
+            Collection<Q> received = provider.next();
+            if (received.isEmpty()) {
+                if (batch.isEmpty()) {
+                    // nothing pending, so let the reader idle as it would without accumulation
+                    return Collections.emptyList();
+                }
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(maxDelayNs - (System.nanoTime() - firstArrivedNs));
+                try {
+                    Thread.sleep(Math.max(0, Math.min(remainingMs, EMPTY_READ_PAUSE_MS)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                continue;
+            }
+            if (batch.isEmpty()) {
+                firstArrivedNs = System.nanoTime();
+            }
+            for (Q q : received) {
+                if (batch.size() < maxBatchSize) {
+                    batch.add(q);
+                } else {
+                    carry.add(q);
+                }
+            }
+        }
+        if (!olderCarryLeft && !carry.isEmpty()) {
+            carryArrivedNs = System.nanoTime();
+        }
+        return batch;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops reading the wrapped provider. The batch being collected, and then any items carried over, are still
+     * handed on by the following <code>next()</code> calls.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+    }
+}
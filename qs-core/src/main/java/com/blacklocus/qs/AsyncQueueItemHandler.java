@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Form of {@link QueueItemHandler} for non-blocking processing. {@link #processAsync(Object)} starts work and returns
+ * immediately, so the queue item processing thread is free to start further items while the work is outstanding.
+ * Queue items count as in flight until their future completes, independent of how many threads are in use.
+ *
+ * @param <Q> queue item type
+ * @param <T> the type that queue items are converted to
+ * @param <R> the result of processing a converted queue item
+ */
+public interface AsyncQueueItemHandler<Q, T, R> {
+
+    /**
+     * Convert the given queue item on the queue item processing thread.
+     *
+     * @param queueItem a queue item to convert
+     */
+    T convert(Q queueItem) throws Exception;
+
+    /**
+     * Start processing a queue item of the given converted type on the queue item processing thread. This should not
+     * block.
+     *
+     * @param convertedQueueItem the converted target queue item
+     * @return a future completing with the result of processing
+     */
+    ListenableFuture<R> processAsync(T convertedQueueItem) throws Exception;
+
+    /**
+     * Called when the future returned by {@link #processAsync(Object)} completes successfully.
+     *
+     * @param queueItem          the original queue item that was successfully processed
+     * @param convertedQueueItem the converted target queue item
+     * @param result             the result the future completed with
+     */
+    void onSuccess(Q queueItem, T convertedQueueItem, R result);
+
+    /**
+     * Called when conversion fails, {@link #processAsync(Object)} throws, or the future it returned fails.
+     *
+     * @param queueItem          the queue item received
+     * @param convertedQueueItem the converted target queue item, may be null if convert failed
+     * @param throwable          the error that occurred while trying to process the queue item
+     */
+    void onError(Q queueItem, T convertedQueueItem, Throwable throwable);
+
+    /**
+     * Called after {@link #onSuccess} or {@link #onError}.
+     *
+     * @param queueItem          the original queue item being handled
+     * @param convertedQueueItem the converted target queue item, may be null if convert failed
+     * @param result             the result the future completed with or null if it failed
+     */
+    void onComplete(Q queueItem, T convertedQueueItem, R result);
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link MessageProvider} that can delete many messages at once, e.g. in a single request to the queue service.
+ *
+ * @see MessageProviders#batchingDeletes(MessageProvider, int, long)
+ */
+public interface BatchDeletingMessageProvider extends MessageProvider {
+
+    /**
+     * Delete the given messages. A failure to delete some messages does not stop the others from being deleted.
+     *
+     * @param messages the messages to delete
+     * @return each message that could not be deleted with the reason why, empty if all were deleted
+     */
+    public Map<Message, Exception> deleteBatch(Collection<Message> messages);
+}
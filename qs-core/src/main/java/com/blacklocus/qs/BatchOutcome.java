@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Arrays;
+
+/**
+ * Per-item results of processing a batch through a {@link BatchQueueItemHandler}. Items are addressed by their index
+ * in the batch. An item that has not been reported as failed is considered successful.
+ *
+ * @param <R> the result of processing a single converted queue item
+ */
+public class BatchOutcome<R> {
+
+    private final Object[] results;
+    private final Throwable[] errors;
+    private int errorCount = 0;
+
+    public BatchOutcome(int size) {
+        this.results = new Object[size];
+        this.errors = new Throwable[size];
+    }
+
+    /**
+     * Record a successful result for the item at the given index, clearing any previously recorded failure.
+     */
+    public void succeeded(int index, R result) {
+        if (errors[index] != null) {
+            errors[index] = null;
+            --errorCount;
+        }
+        results[index] = result;
+    }
+
+    /**
+     * Record a failure for the item at the given index.
+     */
+    public void failed(int index, Throwable throwable) {
+        if (throwable == null) {
+            throw new IllegalArgumentException("A failure must have a cause.");
+        }
+        if (errors[index] == null) {
+            ++errorCount;
+        }
+        errors[index] = throwable;
+        results[index] = null;
+    }
+
+    /**
+     * Mark every item in the batch failed with the same cause.
+     */
+    public void failedAll(Throwable throwable) {
+        for (int i = 0; i < size(); i++) {
+            failed(i, throwable);
+        }
+    }
+
+    public int size() {
+        return results.length;
+    }
+
+    public boolean isFailed(int index) {
+        return errors[index] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public R getResult(int index) {
+        return (R) results[index];
+    }
+
+    public Throwable getError(int index) {
+        return errors[index];
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public int getSuccessCount() {
+        return size() - errorCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchOutcome{size=" + size() + ", errors=" + errorCount + ", results=" + Arrays.toString(results) + '}';
+    }
+}
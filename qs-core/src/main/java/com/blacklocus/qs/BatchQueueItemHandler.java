@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.List;
+
+/**
+ * Batch form of {@link QueueItemHandler}. Rather than being handed one queue item at a time, implementations receive
+ * each batch returned by the {@link QueueItemProvider} (optionally re-chunked to a maximum size) as a single unit of
+ * work, so that round trips to databases or bulk APIs can be amortized over the whole batch.
+ * <p/>
+ * All methods are called on the queue item processing thread.
+ *
+ * @param <Q> queue item type
+ * @param <T> the type that queue items are converted to
+ * @param <R> the result of processing a single converted queue item
+ */
+public interface BatchQueueItemHandler<Q, T, R> {
+
+    /**
+     * Convert the given batch of queue items.
+     *
+     * @param queueItems the queue items to convert
+     * @return the converted queue items, in the same order and of the same size as <code>queueItems</code>
+     */
+    List<T> convertAll(List<Q> queueItems) throws Exception;
+
+    /**
+     * Process the converted batch, reporting the outcome of each individual item to <code>outcome</code> by its index
+     * in the batch. Items that are not reported as failed are considered successful. Throwing from this method fails
+     * the batch as a whole.
+     *
+     * @param convertedQueueItems the converted target queue items
+     * @param outcome             collects per-item results and errors
+     */
+    void processAll(List<T> convertedQueueItems, BatchOutcome<R> outcome) throws Exception;
+
+    /**
+     * Called when {@link #processAll(List, BatchOutcome)} returns normally. Individual items may still have failed,
+     * see {@link BatchOutcome#isFailed(int)}.
+     *
+     * @param queueItems          the original queue items
+     * @param convertedQueueItems the converted target queue items
+     * @param outcome             the per-item results and errors reported during processing
+     */
+    void onBatchSuccess(List<Q> queueItems, List<T> convertedQueueItems, BatchOutcome<R> outcome);
+
+    /**
+     * Called when conversion or processing of the batch as a whole throws.
+     *
+     * @param queueItems          the original queue items
+     * @param convertedQueueItems the converted target queue items, may be null if conversion failed
+     * @param throwable           the error that occurred while trying to handle the batch
+     */
+    void onBatchError(List<Q> queueItems, List<T> convertedQueueItems, Throwable throwable);
+}
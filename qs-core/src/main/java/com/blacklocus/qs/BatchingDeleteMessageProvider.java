@@ -0,0 +1,259 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Collects {@link #delete(Message)} calls from any number of threads and carries them out on a background thread in
+ * groups of up to <code>maxBatch</code>, waiting at most <code>maxDelay</code> for a group to fill. A handler thread
+ * completing a message thus no longer waits on a round trip to the queue service, and the service sees one request
+ * per group rather than per message. Groups go through
+ * {@link BatchDeletingMessageProvider#deleteBatch(Collection)} when the wrapped provider supports it, as do the
+ * decorators of {@link MessageProviders} and {@link SafeMessageProvider}, and through single deletes otherwise.
+ * <p/>
+ * Since deletes complete later, failures cannot be thrown to the caller of {@link #delete(Message)}. Each message that
+ * failed to delete is instead reported to the {@link MessageProviders.DeleteFailureCallback}, logged by default.
+ * {@link #close()} stops accepting deletes and flushes those pending.
+ */
+public class BatchingDeleteMessageProvider implements MessageProvider, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingDeleteMessageProvider.class);
+
+    /**
+     * Logs each failed delete.
+     */
+    public static final MessageProviders.DeleteFailureCallback LOG_FAILURES = new MessageProviders.DeleteFailureCallback() {
+        @Override
+        public void failed(Message message, Exception error) {
+            LOG.error("Failed to delete message {}", message.getId(), error);
+        }
+    };
+
+    /**
+     * Queued by {@link #close()} behind the last delete, for the flusher to stop at once the group it is collecting
+     * has been flushed.
+     */
+    private static final Message CLOSE = new Message() {
+        @Override
+        public String getId() {
+            return null;
+        }
+
+        @Override
+        public String getReceipt() {
+            return null;
+        }
+
+        @Override
+        public String getBody() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getAttributes() {
+            return Collections.emptyMap();
+        }
+    };
+
+    private final MessageProvider messageProvider;
+    private final int maxBatch;
+    private final long maxDelayNs;
+    private final MessageProviders.DeleteFailureCallback failureCallback;
+
+    private final BlockingQueue<Message> pending = new LinkedBlockingQueue<Message>();
+    /**
+     * Enqueuing takes the read lock and closing the write lock, so no delete can land behind {@link #CLOSE}.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final Thread flusher;
+    private boolean closed = false;
+
+    /**
+     * @param messageProvider the provider to read from and delete through
+     * @param maxBatch        the most messages to delete at once
+     * @param maxDelayMs      the longest in ms a delete waits for others to join its group
+     * @param failureCallback told about each message that could not be deleted
+     */
+    public BatchingDeleteMessageProvider(MessageProvider messageProvider, int maxBatch, long maxDelayMs,
+                                         MessageProviders.DeleteFailureCallback failureCallback) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be at least 1, was " + maxBatch);
+        }
+        this.messageProvider = messageProvider;
+        this.maxBatch = maxBatch;
+        this.maxDelayNs = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.failureCallback = failureCallback;
+        if (!(messageProvider instanceof BatchDeletingMessageProvider)) {
+            LOG.info("{} cannot delete in batches, groups will be deleted one message at a time",
+                    messageProvider.getClass().getName());
+        }
+        this.flusher = new ThreadFactoryBuilder().setNameFormat("qs-delete-%d").setDaemon(true).build()
+                .newThread(new Flusher());
+        this.flusher.start();
+    }
+
+    @Override
+    public Iterator<Collection<Message>> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return messageProvider.hasNext();
+    }
+
+    @Override
+    public Collection<Message> next() {
+        return messageProvider.next();
+    }
+
+    @Override
+    public void remove() {
+        messageProvider.remove();
+    }
+
+    /**
+     * Queue the message for deletion and return immediately.
+     *
+     * @throws IllegalStateException if this provider has been closed
+     */
+    @Override
+    public void delete(Message message) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Provider closed");
+            }
+            pending.add(message);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queue the messages for deletion and return immediately.
+     *
+     * @throws IllegalStateException if this provider has been closed
+     */
+    public void deleteAll(Collection<Message> messages) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Provider closed");
+            }
+            pending.addAll(messages);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of deletes waiting to be carried out
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Stop accepting deletes, and wait for those pending to be carried out.
+     */
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                pending.add(CLOSE);
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing deletes");
+        }
+    }
+
+    void flush(List<Message> group) {
+        Map<Message, Exception> failures;
+        try {
+            failures = MessageProviders.deleteBatch(messageProvider, group);
+        } catch (Exception e) {
+            failures = new HashMap<Message, Exception>(group.size() * 2);
+            for (Message message : group) {
+                failures.put(message, e);
+            }
+        }
+        for (Map.Entry<Message, Exception> failure : failures.entrySet()) {
+            try {
+                failureCallback.failed(failure.getKey(), failure.getValue());
+            } catch (RuntimeException e) {
+                LOG.error("Delete failure callback threw", e);
+            }
+        }
+    }
+
+    class Flusher implements Runnable {
+        @Override
+        public void run() {
+            List<Message> group = new ArrayList<Message>(maxBatch);
+            boolean closing = false;
+            while (!closing) {
+                try {
+                    Message message = pending.take();
+                    long deadline = System.nanoTime() + maxDelayNs;
+                    while (message != null) {
+                        if (message == CLOSE) {
+                            closing = true;
+                            break;
+                        }
+                        group.add(message);
+                        if (group.size() == maxBatch) {
+                            break;
+                        }
+                        message = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    // only close() stops this thread, flush what was collected and carry on
+                }
+                if (!group.isEmpty()) {
+                    flush(group);
+                    group.clear();
+                }
+            }
+        }
+    }
+}
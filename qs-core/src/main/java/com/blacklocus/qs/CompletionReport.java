@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of {@link QueueReader#runToCompletion()}: how many queue items were read and how they fared, how long
+ * the run took, and the distribution of per-item durations.
+ */
+public class CompletionReport {
+
+    private final QueueReaderStats.Snapshot stats;
+    private final long wallTimeNs;
+
+    CompletionReport(QueueReaderStats.Snapshot stats, long wallTimeNs) {
+        this.stats = stats;
+        this.wallTimeNs = wallTimeNs;
+    }
+
+    /**
+     * @return number of queue items read from the provider
+     */
+    public long getItems() {
+        return stats.getReceiveSize().getSum();
+    }
+
+    public long getSucceeded() {
+        return stats.getSucceeded();
+    }
+
+    public long getFailed() {
+        return stats.getFailed();
+    }
+
+    /**
+     * @return time from the start of the run until the last queue item completed
+     */
+    public long getWallTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(wallTimeNs);
+    }
+
+    /**
+     * @return queue items completed per second of wall time
+     */
+    public double getThroughput() {
+        return wallTimeNs == 0 ? 0 : getItems() * 1e9 / wallTimeNs;
+    }
+
+    /**
+     * @return the full measurements of the run, including convert, process and executor queue time percentiles
+     */
+    public QueueReaderStats.Snapshot getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot processNs = stats.getProcessNs();
+        return "CompletionReport{items=" + getItems() + ", succeeded=" + getSucceeded() + ", failed=" + getFailed() +
+                ", wallTimeMs=" + getWallTimeMs() + ", throughput=" + String.format("%.1f/s", getThroughput()) +
+                ", processMs={p50=" + toMs(processNs.getPercentile(50)) + ", p90=" + toMs(processNs.getPercentile(90)) +
+                ", p99=" + toMs(processNs.getPercentile(99)) + ", max=" + toMs(processNs.getMax()) + "}}";
+    }
+
+    private static String toMs(long ns) {
+        return String.format("%.3f", ns / 1e6);
+    }
+}
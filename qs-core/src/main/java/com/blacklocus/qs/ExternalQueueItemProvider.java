@@ -20,7 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -37,12 +37,20 @@ public class ExternalQueueItemProvider<Q> implements QueueItemProvider<Q>, Close
 
     private static final Logger LOG = LoggerFactory.getLogger(com.blacklocus.qs.ExternalQueueItemProvider.class);
 
+    /**
+     * How often a put blocked on the queue wakes the reader again.
+     */
+    static final long WAKE_INTERVAL_MS = 10;
+
     private final BlockingQueue<Q> q;
 
     private final AtomicBoolean alive = new AtomicBoolean(true);
 
     private final Long pollTimeout;
     private final TimeUnit pollTimeUnit;
+    private final int maxBatchSize;
+
+    private volatile IdleStrategy wakeOnPut;
 
     public ExternalQueueItemProvider() {
         this(null, null);
@@ -53,9 +61,26 @@ public class ExternalQueueItemProvider<Q> implements QueueItemProvider<Q>, Close
     }
 
     public ExternalQueueItemProvider(BlockingQueue<Q> queue, Long pollTimeout, TimeUnit pollTimeUnit) {
+        this(queue, pollTimeout, pollTimeUnit, 1);
+    }
+
+    /**
+     * @param queue        handoff between producers and this provider
+     * @param pollTimeout  how long {@link #next()} waits for a first item, or null to not wait
+     * @param pollTimeUnit unit of <code>pollTimeout</code>
+     * @param maxBatchSize once a first item is received, {@link #next()} also takes whatever else is immediately
+     *                     available in the queue, up to this many items in total. Batches only form from items
+     *                     the queue holds, so a {@link SynchronousQueue} batches no more than the number of producers
+     *                     currently blocked in put.
+     */
+    public ExternalQueueItemProvider(BlockingQueue<Q> queue, Long pollTimeout, TimeUnit pollTimeUnit, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1, was " + maxBatchSize);
+        }
         this.q = queue;
         this.pollTimeout = pollTimeout;
         this.pollTimeUnit = pollTimeUnit;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @Override
@@ -68,7 +93,6 @@ public class ExternalQueueItemProvider<Q> implements QueueItemProvider<Q>, Close
         return alive.get();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<Q> next() {
         Q q = null;
@@ -82,7 +106,15 @@ public class ExternalQueueItemProvider<Q> implements QueueItemProvider<Q>, Close
                 throw new RuntimeException(e);
             }
         }
-        return q == null ? Collections.<Q>emptyList() : Arrays.asList(q); // meh, no batching
+        if (q == null) {
+            return Collections.emptyList();
+        } else if (maxBatchSize == 1) {
+            return Collections.singletonList(q);
+        }
+        List<Q> batch = new ArrayList<Q>(Math.min(maxBatchSize, 64));
+        batch.add(q);
+        this.q.drainTo(batch, maxBatchSize - 1);
+        return batch;
     }
 
     @Override
@@ -90,8 +122,55 @@ public class ExternalQueueItemProvider<Q> implements QueueItemProvider<Q>, Close
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Wake the given idle strategy, typically that of the {@link QueueReader} consuming this provider, whenever an item
+     * is put, so that the reader does not sit out an idle wait while work is waiting.
+     *
+     * @return this instance for chaining
+     */
+    public ExternalQueueItemProvider<Q> wakeOnPut(IdleStrategy idleStrategy) {
+        this.wakeOnPut = idleStrategy;
+        return this;
+    }
+
     public void put(Q q) throws InterruptedException {
-        this.q.put(q);
+        IdleStrategy wakeOnPut = this.wakeOnPut;
+        if (wakeOnPut == null) {
+            this.q.put(q);
+            return;
+        }
+        putWaking(q, wakeOnPut);
+        wakeOnPut.wake();
+    }
+
+    /**
+     * Put each of the given items in order, blocking as {@link #put(Object)} would.
+     */
+    public void putAll(Collection<? extends Q> qs) throws InterruptedException {
+        IdleStrategy wakeOnPut = this.wakeOnPut;
+        if (wakeOnPut == null) {
+            for (Q q : qs) {
+                this.q.put(q);
+            }
+            return;
+        }
+        for (Q q : qs) {
+            putWaking(q, wakeOnPut);
+        }
+        wakeOnPut.wake();
+    }
+
+    /**
+     * Waking before the item is in the queue could let the reader spend the wake on an empty read and go back to idle,
+     * so the caller wakes after. While a full or synchronous queue holds the item back, keep waking the reader so that
+     * it comes to take it.
+     */
+    private void putWaking(Q q, IdleStrategy wakeOnPut) throws InterruptedException {
+        if (!this.q.offer(q)) {
+            do {
+                wakeOnPut.wake();
+            } while (!this.q.offer(q, WAKE_INTERVAL_MS, TimeUnit.MILLISECONDS));
+        }
     }
 
     @Override
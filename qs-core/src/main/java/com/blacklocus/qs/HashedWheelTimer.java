@@ -0,0 +1,216 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many short tasks after a delay on a single thread, trading precision for cheap scheduling and cancellation.
+ * Time is divided into ticks, and each scheduled task lands in one bucket of a fixed wheel of buckets. Every tick the
+ * timer thread expires the tasks of one bucket, so a task runs up to one tick late. Scheduling and cancelling are
+ * constant time and lock-free, which suits timeouts that are set for every queue item and almost always cancelled.
+ * <p/>
+ * Tasks run on the timer thread and must be short.
+ */
+public class HashedWheelTimer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * default duration of one tick in ms, and so the precision of the timer
+     */
+    public static final long DEFAULT_TICK_MS = 100;
+
+    /**
+     * default number of buckets in the wheel
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * A scheduled task.
+     */
+    public static interface Timeout {
+
+        /**
+         * @return false if the task already ran or was already cancelled
+         */
+        boolean cancel();
+
+        /**
+         * @return whether the task has run or is running
+         */
+        boolean isExpired();
+    }
+
+    private final long tickNs;
+    private final int mask;
+    private final List<List<Entry>> wheel;
+    private final Queue<Entry> additions = new ConcurrentLinkedQueue<Entry>();
+    private final Thread worker;
+    private final long startNs;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param name      names the timer thread
+     * @param tick      duration of one tick
+     * @param unit      unit of <code>tick</code>
+     * @param wheelSize number of buckets, rounded up to a power of two. Tasks further out than wheelSize ticks are
+     *                  revisited once per revolution of the wheel.
+     */
+    public HashedWheelTimer(String name, long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive, was " + tick);
+        }
+        if (wheelSize < 1 || wheelSize > 1 << 20) {
+            throw new IllegalArgumentException("wheelSize must be within [1, 2^20], was " + wheelSize);
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNs = unit.toNanos(tick);
+        this.mask = size - 1;
+        this.wheel = new ArrayList<List<Entry>>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<Entry>());
+        }
+        this.startNs = System.nanoTime();
+        this.worker = new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build().newThread(new Worker());
+        this.worker.start();
+    }
+
+    /**
+     * Run the task once the delay has elapsed, up to one tick late.
+     *
+     * @throws IllegalStateException if the timer has been closed
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("Timer closed");
+        }
+        Entry entry = new Entry(task, System.nanoTime() + unit.toNanos(delay));
+        additions.add(entry);
+        return entry;
+    }
+
+    /**
+     * Stop the timer thread. Tasks that have not run yet never will.
+     */
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    class Worker implements Runnable {
+
+        private long tick = 0;
+
+        @Override
+        public void run() {
+            while (running) {
+                long tickEndNs = startNs + (tick + 1) * tickNs;
+                long now;
+                while ((now = System.nanoTime()) - tickEndNs < 0) {
+                    LockSupport.parkNanos(tickEndNs - now);
+                    if (!running) {
+                        return;
+                    }
+                }
+                transferAdditions();
+                expire(wheel.get((int) tick & mask), now);
+                ++tick;
+            }
+        }
+
+        private void transferAdditions() {
+            Entry entry;
+            while ((entry = additions.poll()) != null) {
+                if (entry.state.get() != Entry.PENDING) {
+                    continue;
+                }
+                long ticks = Math.max((entry.deadlineNs - startNs) / tickNs, tick);
+                entry.remainingRounds = (ticks - tick) / wheel.size();
+                wheel.get((int) ticks & mask).add(entry);
+            }
+        }
+
+        private void expire(List<Entry> bucket, long now) {
+            int kept = 0;
+            for (int i = 0; i < bucket.size(); i++) {
+                Entry entry = bucket.get(i);
+                if (entry.state.get() != Entry.PENDING) {
+                    continue;
+                }
+                if (entry.remainingRounds > 0 || entry.deadlineNs - now > 0) {
+                    if (entry.remainingRounds > 0) {
+                        --entry.remainingRounds;
+                    }
+                    bucket.set(kept++, entry);
+                } else if (entry.state.compareAndSet(Entry.PENDING, Entry.EXPIRED)) {
+                    try {
+                        entry.task.run();
+                    } catch (Throwable t) {
+                        LOG.error("Timer task failed", t);
+                    }
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+        }
+    }
+
+    static class Entry implements Timeout {
+
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        final Runnable task;
+        final long deadlineNs;
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        /**
+         * only accessed by the timer thread
+         */
+        long remainingRounds;
+
+        Entry(Runnable task, long deadlineNs) {
+            this.task = task;
+            this.deadlineNs = deadlineNs;
+        }
+
+        @Override
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+}
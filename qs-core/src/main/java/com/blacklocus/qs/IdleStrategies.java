@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common {@link IdleStrategy} implementations.
+ */
+public class IdleStrategies {
+
+    /**
+     * Wait the same fixed time after every empty read. This is the classic {@link QueueReader} behavior.
+     *
+     * @param sleepMs how long to wait in ms, 0 to not wait at all
+     */
+    public static IdleStrategy fixed(long sleepMs) {
+        return new FixedIdleStrategy(sleepMs);
+    }
+
+    /**
+     * Wait <code>initialMs</code> after the first empty read, then double the wait after each further consecutive
+     * empty read up to <code>maxMs</code>. Any read returning queue items resets the wait to <code>initialMs</code>.
+     * Each wait is randomly shortened by up to <code>jitter</code> of itself, so that many readers do not poll in
+     * lockstep.
+     *
+     * @param initialMs wait in ms after the first empty read
+     * @param maxMs     the longest wait in ms
+     * @param jitter    fraction in [0, 1] of each wait that may be randomly taken off
+     */
+    public static IdleStrategy exponentialBackoff(long initialMs, long maxMs, double jitter) {
+        return new ExponentialBackoffIdleStrategy(initialMs, maxMs, jitter);
+    }
+
+    /**
+     * Sleeps that can be cut short by {@link #wake()}. A wake that arrives while not idle is remembered and ends the
+     * next idle immediately, so that work arriving between an empty read and the following idle is not missed.
+     */
+    static abstract class WakeableIdleStrategy implements IdleStrategy {
+
+        private final Object lock = new Object();
+        private boolean woken = false;
+
+        protected void await(long ms) throws InterruptedException {
+            synchronized (lock) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+                long remaining = deadline - System.nanoTime();
+                while (!woken && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+                woken = false;
+            }
+        }
+
+        @Override
+        public void wake() {
+            synchronized (lock) {
+                woken = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    static class FixedIdleStrategy extends WakeableIdleStrategy {
+
+        private final long sleepMs;
+
+        FixedIdleStrategy(long sleepMs) {
+            this.sleepMs = sleepMs;
+        }
+
+        @Override
+        public void idle() throws InterruptedException {
+            await(sleepMs);
+        }
+
+        @Override
+        public void reset() {
+            // nothing to reset
+        }
+
+        @Override
+        public String toString() {
+            return "fixed(" + sleepMs + "ms)";
+        }
+    }
+
+    static class ExponentialBackoffIdleStrategy extends WakeableIdleStrategy {
+
+        private final long initialMs;
+        private final long maxMs;
+        private final double jitter;
+        private final Random random = new Random();
+
+        private long nextMs;
+
+        ExponentialBackoffIdleStrategy(long initialMs, long maxMs, double jitter) {
+            if (initialMs < 1 || maxMs < initialMs) {
+                throw new IllegalArgumentException("Require 0 < initialMs <= maxMs, was " + initialMs + ", " + maxMs);
+            }
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("jitter must be within [0, 1], was " + jitter);
+            }
+            this.initialMs = initialMs;
+            this.maxMs = maxMs;
+            this.jitter = jitter;
+            this.nextMs = initialMs;
+        }
+
+        @Override
+        public void idle() throws InterruptedException {
+            long sleepMs = nextMs - (long) (nextMs * jitter * random.nextDouble());
+            nextMs = Math.min(maxMs, nextMs * 2);
+            await(sleepMs);
+        }
+
+        @Override
+        public void reset() {
+            nextMs = initialMs;
+        }
+
+        /**
+         * @return the wait in ms, before jitter, of the next idle
+         */
+        long getNextMs() {
+            return nextMs;
+        }
+
+        @Override
+        public String toString() {
+            return "exponentialBackoff(" + initialMs + "ms..." + maxMs + "ms, jitter " + jitter + ")";
+        }
+    }
+}
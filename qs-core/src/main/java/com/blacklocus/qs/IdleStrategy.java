@@ -0,0 +1,42 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+/**
+ * Decides how long a {@link QueueReader} waits after a read from its provider returns no queue items. Implementations
+ * hold per-reader state and so should not be shared between readers.
+ *
+ * @see IdleStrategies
+ */
+public interface IdleStrategy {
+
+    /**
+     * Called on the reading thread after a read returned no queue items. Blocks for as long as the strategy sees fit,
+     * or until {@link #wake()}.
+     */
+    void idle() throws InterruptedException;
+
+    /**
+     * Called on the reading thread after a read returned queue items.
+     */
+    void reset();
+
+    /**
+     * May be called from any thread to cut the current or next {@link #idle()} short, e.g. when a producer knows
+     * work has just arrived.
+     */
+    void wake();
+}
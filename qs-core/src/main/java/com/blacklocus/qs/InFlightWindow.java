@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of queue items that a {@link QueueReader} has received but not yet finished handling. Permits
+ * are counted in queue items, not batches or threads.
+ */
+public class InFlightWindow {
+
+    private final int capacity;
+    private final Permits permits;
+
+    /**
+     * @param capacity maximum number of queue items that may be in flight at once
+     */
+    public InFlightWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.permits = new Permits(capacity);
+    }
+
+    /**
+     * Block until <code>items</code> slots are available and claim them.
+     */
+    public void acquire(int items) throws InterruptedException {
+        permits.acquire(items);
+    }
+
+    /**
+     * Claim <code>items</code> slots without waiting, even if that takes the window past its capacity. The window then
+     * admits nothing more until enough items have been released to bring it back under capacity.
+     */
+    public void overdraw(int items) {
+        if (items > 0) {
+            permits.reducePermits(items);
+        }
+    }
+
+    /**
+     * Return <code>items</code> slots to the window.
+     */
+    public void release(int items) {
+        if (items > 0) {
+            permits.release(items);
+        }
+    }
+
+    /**
+     * @return the maximum number of queue items that may be in flight at once
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of queue items currently claimed, which includes slots reserved for a receive in progress
+     */
+    public int getOccupancy() {
+        return capacity - permits.availablePermits();
+    }
+
+    /**
+     * Exposes {@link Semaphore#reducePermits(int)}, which may take the available permits negative.
+     */
+    static class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The deadline of one queue item's handling. Armed by the handling thread, it either fires on the timer thread, which
+ * interrupts the handling thread or cancels the pending future, or is disarmed by the handling thread once handling
+ * ends. Disarming waits out a concurrent firing and clears its interrupt, so that an interrupt meant for one queue item
+ * never leaks into the next one handled by the same pool thread.
+ */
+class ItemDeadline implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ItemDeadline.class);
+
+    private static final int ARMED = 0;
+    private static final int FIRING = 1;
+    private static final int FIRED = 2;
+    private static final int DISARMED = 3;
+    private static final int DISARMED_FIRED = 4;
+
+    private final Object queueItem;
+    private final long timeoutNs;
+    private final Thread thread;
+    private final Future<?> future;
+    private final AtomicInteger state = new AtomicInteger(ARMED);
+    private HashedWheelTimer.Timeout timeout;
+    private ItemDeadlineException exception;
+
+    private ItemDeadline(Object queueItem, long timeoutNs, Thread thread, Future<?> future) {
+        this.queueItem = queueItem;
+        this.timeoutNs = timeoutNs;
+        this.thread = thread;
+        this.future = future;
+    }
+
+    /**
+     * Interrupt the calling thread if it is still handling the queue item once the timeout elapses.
+     */
+    static ItemDeadline forCurrentThread(HashedWheelTimer timer, Object queueItem, long timeoutNs) {
+        return new ItemDeadline(queueItem, timeoutNs, Thread.currentThread(), null).arm(timer);
+    }
+
+    /**
+     * Cancel the future if it is not yet done once the timeout elapses.
+     */
+    static ItemDeadline forFuture(HashedWheelTimer timer, Object queueItem, long timeoutNs, Future<?> future) {
+        return new ItemDeadline(queueItem, timeoutNs, null, future).arm(timer);
+    }
+
+    private ItemDeadline arm(HashedWheelTimer timer) {
+        timeout = timer.newTimeout(this, timeoutNs, TimeUnit.NANOSECONDS);
+        return this;
+    }
+
+    @Override
+    public void run() {
+        if (!state.compareAndSet(ARMED, FIRING)) {
+            return;
+        }
+        ItemDeadlineException e = new ItemDeadlineException("Handling of " + queueItem + " exceeded its deadline of " +
+                TimeUnit.NANOSECONDS.toMillis(timeoutNs) + "ms");
+        if (thread != null) {
+            try {
+                e.setStackTrace(thread.getStackTrace());
+                LOG.warn("{}. Interrupting {}, which was at:", e.getMessage(), thread.getName(), e);
+                thread.interrupt();
+                exception = e;
+            } finally {
+                state.set(FIRED);
+            }
+        } else {
+            exception = e;
+            state.set(FIRED);
+            LOG.warn("{}. Cancelling it.", e.getMessage());
+            // Only once fired, since cancelling runs the future's callbacks right here, and they disarm this deadline.
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * End the deadline, from the handling thread. May be called more than once.
+     *
+     * @return true if the deadline fired
+     */
+    boolean disarm() {
+        if (state.compareAndSet(ARMED, DISARMED)) {
+            timeout.cancel();
+            return false;
+        }
+        int s;
+        while ((s = state.get()) == FIRING) {
+            Thread.yield();
+        }
+        if (s == FIRED && state.compareAndSet(FIRED, DISARMED_FIRED) && thread != null) {
+            // swallow our own interrupt, should the handler not have consumed it
+            Thread.interrupted();
+        }
+        return state.get() == DISARMED_FIRED;
+    }
+
+    /**
+     * Disarm, and if the deadline fired, replace the error of the handler with the deadline's.
+     *
+     * @param error what the handler threw
+     * @return the error to report
+     */
+    Throwable error(Throwable error) {
+        if (!disarm()) {
+            return error;
+        }
+        if (exception.getCause() == null && error != exception) {
+            exception.initCause(error);
+        }
+        return exception;
+    }
+}
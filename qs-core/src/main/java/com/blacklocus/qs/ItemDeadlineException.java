@@ -0,0 +1,33 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handed to onError when handling a queue item outlived its deadline, see
+ * {@link QueueReader#withDeadline(long, java.util.concurrent.TimeUnit)}. Its stack trace is that of the handling thread
+ * at the moment the deadline passed, i.e. where it was stuck, and its cause is whatever the handler threw once
+ * interrupted.
+ */
+public class ItemDeadlineException extends TimeoutException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ItemDeadlineException(String message) {
+        super(message);
+    }
+}
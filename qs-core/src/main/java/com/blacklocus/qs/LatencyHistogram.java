@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size histogram of non-negative long values, typically durations in nanoseconds. Values up to 15 are counted
+ * exactly. Larger values fall into one of 16 buckets per power of two, so that reported values are within about 3% of
+ * the recorded ones over the whole range of long. Buckets are striped like {@link StripedCounter}, though each stripe
+ * is only allocated once a thread records into it, so a histogram costs memory in proportion to the threads using it.
+ * Recording never locks, and allocates only on a stripe's first use.
+ * <p/>
+ * {@link #snapshot()} reads the buckets without stopping writers. Snapshots of different histograms, e.g. of several
+ * readers, {@link Snapshot#merge(Snapshot) merge} into one.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * one run of sub-buckets for the exact values below {@link #SUB_BUCKETS}, then one per power of two above
+     */
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * default number of stripes, the number of processors rounded up to a power of two, at most 16
+     */
+    public static final int DEFAULT_STRIPES = Math.min(StripedCounter.DEFAULT_STRIPES, 16);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+    private final int mask;
+    private final StripedCounter sum;
+
+    public LatencyHistogram() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of bucket arrays, rounded up to a power of two. Each takes about 7.5KB once used.
+     */
+    public LatencyHistogram(int stripes) {
+        int size = StripedCounter.stripesFor(stripes);
+        this.stripes = new AtomicReferenceArray<AtomicLongArray>(size);
+        this.mask = size - 1;
+        this.sum = new StripedCounter(size);
+    }
+
+    /**
+     * @param value the value to count, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int stripe = StripedCounter.stripe(mask);
+        AtomicLongArray buckets = stripes.get(stripe);
+        if (buckets == null) {
+            buckets = allocate(stripe);
+        }
+        buckets.incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int s = 0; s < stripes.length(); s++) {
+            AtomicLongArray buckets = stripes.get(s);
+            if (buckets != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += buckets.get(i);
+                }
+            }
+        }
+        return new Snapshot(counts, sum.sum());
+    }
+
+    private AtomicLongArray allocate(int stripe) {
+        AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        // another thread of the same stripe may have been first
+        return stripes.compareAndSet(stripe, null, buckets) ? buckets : stripes.get(stripe);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return the value reported for the bucket, the middle of its range
+     */
+    static long valueOf(int index) {
+        long lower = lowerBoundOf(index);
+        long upper = index + 1 < BUCKETS ? lowerBoundOf(index + 1) - 1 : Long.MAX_VALUE;
+        return lower + (upper - lower) / 2;
+    }
+
+    /**
+     * An immutable copy of a histogram's counts.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /**
+         * @return a snapshot counting the values of both this and the other snapshot
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = Arrays.copyOf(counts, BUCKETS);
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] += other.counts[i];
+            }
+            return new Snapshot(merged, sum + other.sum);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile in [0, 100]
+         * @return the value below or at which the given percentage of values lie, or 0 if there are none
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return valueOf(i);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * @return the largest value recorded, or 0 if there are none
+         */
+        public long getMax() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return valueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50) +
+                    ", p99=" + getPercentile(99) + ", max=" + getMax() + '}';
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the leases of in-flight messages from running out while they are being handled, so that slow messages are not
+ * delivered to another consumer in the meantime, while short leases still bring back the messages of a consumer that
+ * died. A single background thread periodically renews the leases of all tracked messages that are halfway through
+ * their lease, in one {@link LeaseRenewingMessageProvider#renewLeases} call. Messages are tracked from receipt until
+ * finished, see {@link MessageQueueReader#withLeaseRenewer(LeaseRenewer)}.
+ * <p/>
+ * A message received by the provider starts out with the provider's own lease, e.g. the SQS queue's visibility
+ * timeout, which must be at least half of this renewer's lease, as its first renewal comes halfway through it.
+ */
+public class LeaseRenewer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseRenewer.class);
+
+    /**
+     * the most often the renewer checks for leases due for renewal
+     */
+    static final long MIN_CHECK_INTERVAL_MS = 100;
+
+    private final LeaseRenewingMessageProvider provider;
+    private final long leaseNs;
+    private final long renewIntervalNs;
+    private final long checkIntervalNs;
+    private volatile long maxLeaseNs = 0;
+
+    private final Map<Message, Lease> leases = new ConcurrentHashMap<Message, Lease>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param provider renews the leases
+     * @param lease    lease time granted by each renewal, renewed once half of it has passed
+     * @param unit     unit of <code>lease</code>
+     */
+    public LeaseRenewer(LeaseRenewingMessageProvider provider, long lease, TimeUnit unit) {
+        if (unit.toMillis(lease) < 2 * MIN_CHECK_INTERVAL_MS) {
+            throw new IllegalArgumentException("lease must be at least " + 2 * MIN_CHECK_INTERVAL_MS + "ms, was " +
+                    unit.toMillis(lease) + "ms");
+        }
+        this.provider = provider;
+        this.leaseNs = unit.toNanos(lease);
+        this.renewIntervalNs = leaseNs / 2;
+        this.checkIntervalNs = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_CHECK_INTERVAL_MS), renewIntervalNs / 4);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("qs-lease-renewer-%d").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renewDue();
+                } catch (Throwable t) {
+                    LOG.error("Failed to renew leases", t);
+                }
+            }
+        }, checkIntervalNs, checkIntervalNs, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop renewing the lease of a message once it has been tracked this long, so that a handler stuck for good does
+     * not hold its message forever.
+     *
+     * @param maxLease longest time a message is held, 0 for no limit, the default
+     * @param unit     unit of <code>maxLease</code>
+     * @return this instance for chaining
+     */
+    public LeaseRenewer withMaxLease(long maxLease, TimeUnit unit) {
+        this.maxLeaseNs = unit.toNanos(maxLease);
+        return this;
+    }
+
+    /**
+     * Start renewing the leases of newly received messages.
+     */
+    public void track(Iterable<Message> messages) {
+        long now = System.nanoTime();
+        for (Message message : messages) {
+            leases.put(message, new Lease(now, now + renewIntervalNs));
+        }
+    }
+
+    /**
+     * Stop renewing the lease of a message, e.g. because it has been handled.
+     */
+    public void untrack(Message message) {
+        leases.remove(message);
+    }
+
+    /**
+     * @return the number of messages whose leases are being renewed
+     */
+    public int getTracked() {
+        return leases.size();
+    }
+
+    void renewDue() {
+        long now = System.nanoTime();
+        // also renew what would fall due before the next check, so that renewals go out in fewer, larger batches
+        long horizon = now + checkIntervalNs;
+        List<Message> due = new ArrayList<Message>();
+        for (Map.Entry<Message, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (maxLeaseNs > 0 && now - lease.trackedNs >= maxLeaseNs) {
+                LOG.warn("Message {} held for longer than {}ms. No longer renewing its lease.", entry.getKey(),
+                        TimeUnit.NANOSECONDS.toMillis(maxLeaseNs));
+                leases.remove(entry.getKey());
+            } else if (lease.renewAtNs - horizon <= 0) {
+                due.add(entry.getKey());
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+
+        Map<Message, Exception> failures = provider.renewLeases(due, leaseNs, TimeUnit.NANOSECONDS);
+        long renewAt = now + renewIntervalNs;
+        for (Message message : due) {
+            Exception failure = failures.get(message);
+            if (failure instanceof MessageGoneException) {
+                // a message finished meanwhile may well have been deleted already, which is no cause for concern
+                if (leases.remove(message) != null) {
+                    LOG.debug("Message {} is gone, no longer renewing its lease", message);
+                }
+                continue;
+            }
+            if (failure != null) {
+                // likely transient, e.g. throttling, and the lease is still due so the next check tries again
+                if (leases.containsKey(message)) {
+                    LOG.warn("Failed to renew the lease of message {}. Retrying.", message, failure);
+                }
+                continue;
+            }
+            Lease lease = leases.get(message);
+            if (lease != null) {
+                // only this thread replaces leases of tracked messages, so a concurrent untrack is the only race
+                lease.renewAtNs = renewAt;
+            }
+        }
+        LOG.debug("Renewed {} leases, {} failed", due.size() - failures.size(), failures.size());
+    }
+
+    /**
+     * Stop renewing all leases.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        leases.clear();
+    }
+
+    static class Lease {
+        final long trackedNs;
+        volatile long renewAtNs;
+
+        Lease(long trackedNs, long renewAtNs) {
+            this.trackedNs = trackedNs;
+            this.renewAtNs = renewAtNs;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MessageProvider} whose messages are leased to their receiver for a limited time, after which they are
+ * delivered again, and whose leases can be extended, e.g. an SQS visibility timeout.
+ *
+ * @see LeaseRenewer
+ */
+public interface LeaseRenewingMessageProvider extends MessageProvider {
+
+    /**
+     * Extend the leases of the given messages so that each runs out <code>lease</code> from now. A failure to renew
+     * some leases does not stop the others from being renewed. A message that turns out to have been deleted meanwhile
+     * should be reported with a {@link MessageGoneException}.
+     *
+     * @param messages messages received from this provider and not yet deleted
+     * @param lease    new remaining lease time
+     * @param unit     unit of <code>lease</code>
+     * @return each message whose lease could not be renewed with the reason why, empty if all were renewed
+     */
+    public Map<Message, Exception> renewLeases(Collection<Message> messages, long lease, TimeUnit unit);
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interleaves several independent {@link MessageProvider}s by deficit round-robin, so that over time each provider
+ * yields messages in proportion to its weight, and no provider starves the others however busy it is. A provider
+ * that returns no messages is skipped for an exponentially growing backoff, reset by its next non-empty read.
+ * Messages are wrapped so that {@link #delete(Message)} reaches the provider they came from.
+ * <p/>
+ * Each call to {@link #next()} reads at most one batch from each provider, stopping at the first non-empty one, so
+ * wrapped providers should not wait long on an empty read, e.g. should use little or no SQS long polling. Like other
+ * providers, {@link #next()} is meant for a single reading thread, while {@link #delete(Message)} is thread-safe if the
+ * wrapped providers' are.
+ */
+public class MergedMessageProvider implements MessageProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MergedMessageProvider.class);
+
+    /**
+     * default backoff in ms after a provider's first empty read
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 100;
+
+    /**
+     * default longest backoff in ms of a repeatedly empty provider
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MS = 10 * 1000;
+
+    private final List<Source> sources;
+    private final long initialBackoffNs;
+    private final long maxBackoffNs;
+    private int cursor = 0;
+    private long calls = 0;
+
+    /**
+     * @param weightedProviders each provider with its weight, the number of messages it may yield per round
+     * @param initialBackoffMs  how long in ms to skip a provider after its first empty read
+     * @param maxBackoffMs      the longest a repeatedly empty provider is skipped
+     */
+    public MergedMessageProvider(Map<? extends MessageProvider, Integer> weightedProviders,
+                                 long initialBackoffMs,
+                                 long maxBackoffMs) {
+        if (weightedProviders.isEmpty()) {
+            throw new IllegalArgumentException("At least one provider is required");
+        }
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Require 0 <= initialBackoffMs <= maxBackoffMs, was " +
+                    initialBackoffMs + ", " + maxBackoffMs);
+        }
+        this.sources = new ArrayList<Source>(weightedProviders.size());
+        for (Map.Entry<? extends MessageProvider, Integer> entry : weightedProviders.entrySet()) {
+            if (entry.getValue() == null || entry.getValue() < 1) {
+                throw new IllegalArgumentException("Weights must be at least 1, was " + entry.getValue());
+            }
+            sources.add(new Source(entry.getKey(), entry.getValue(), System.nanoTime()));
+        }
+        this.initialBackoffNs = TimeUnit.MILLISECONDS.toNanos(initialBackoffMs);
+        this.maxBackoffNs = TimeUnit.MILLISECONDS.toNanos(maxBackoffMs);
+        // the first provider starts with its quantum as any other would on its turn
+        sources.get(0).deficit = sources.get(0).weight;
+    }
+
+    @Override
+    public Iterator<Collection<Message>> iterator() {
+        return this;
+    }
+
+    /**
+     * @return true while any wrapped provider has next
+     */
+    @Override
+    public boolean hasNext() {
+        for (Source source : sources) {
+            if (!source.exhausted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Collection<Message> next() {
+        ++calls;
+        long now = System.nanoTime();
+        // stop once every provider is exhausted, backing off or already read during this call
+        int unready = 0;
+        while (unready < sources.size()) {
+            Source source = sources.get(cursor);
+            if (!source.isReady(now, calls)) {
+                ++unready;
+                advance(now);
+                continue;
+            }
+            unready = 0;
+            if (source.deficit <= 0) {
+                advance(now);
+                continue;
+            }
+            Collection<Message> messages = source.read(calls);
+            if (messages.isEmpty()) {
+                source.backoff(System.nanoTime());
+                advance(now);
+                continue;
+            }
+            source.emptyReads = 0;
+            source.deficit -= messages.size();
+            if (source.deficit <= 0) {
+                advance(now);
+            }
+            List<Message> originating = new ArrayList<Message>(messages.size());
+            for (Message message : messages) {
+                originating.add(new OriginatingMessage(source.provider, message));
+            }
+            return originating;
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove() not supported");
+    }
+
+    /**
+     * Delete the message through the provider it came from.
+     *
+     * @throws IllegalArgumentException if the message did not come from this provider
+     */
+    @Override
+    public void delete(Message message) {
+        if (message instanceof OriginatingMessage) {
+            OriginatingMessage originatingMessage = (OriginatingMessage) message;
+            originatingMessage.provider.delete(originatingMessage.message);
+        } else {
+            throw new IllegalArgumentException("Message " + message.getId() + " did not come from this provider");
+        }
+    }
+
+    /**
+     * Move to the next provider and grant it its quantum. A provider that cannot be read has its credit reset, so that
+     * it cannot hoard a burst for later.
+     */
+    private void advance(long now) {
+        cursor = (cursor + 1) % sources.size();
+        Source next = sources.get(cursor);
+        if (next.exhausted || next.readyAtNs - now > 0) {
+            next.deficit = 0;
+        } else {
+            next.deficit += next.weight;
+        }
+    }
+
+    class Source {
+
+        final MessageProvider provider;
+        final int weight;
+        int deficit = 0;
+        int emptyReads = 0;
+        long readyAtNs;
+        long lastReadCall = 0;
+        boolean exhausted = false;
+
+        Source(MessageProvider provider, int weight, long now) {
+            this.provider = provider;
+            this.weight = weight;
+            this.readyAtNs = now;
+        }
+
+        boolean isReady(long now, long call) {
+            return !exhausted && lastReadCall != call && now - readyAtNs >= 0;
+        }
+
+        Collection<Message> read(long call) {
+            lastReadCall = call;
+            try {
+                if (!provider.hasNext()) {
+                    LOG.info("Provider {} is exhausted", provider);
+                    exhausted = true;
+                    return Collections.emptyList();
+                }
+                return provider.next();
+            } catch (RuntimeException e) {
+                LOG.error("An error occurred while reading provider {}", provider, e);
+                return Collections.emptyList();
+            }
+        }
+
+        void backoff(long now) {
+            long backoffNs = Math.min(maxBackoffNs, initialBackoffNs << Math.min(emptyReads, 20));
+            ++emptyReads;
+            readyAtNs = now + backoffNs;
+            deficit = 0;
+        }
+    }
+
+    /**
+     * Wrap a {@link Message} and tack on the provider it came from.
+     */
+    static class OriginatingMessage implements Message {
+
+        final MessageProvider provider;
+        final Message message;
+
+        OriginatingMessage(MessageProvider provider, Message message) {
+            this.provider = provider;
+            this.message = message;
+        }
+
+        @Override
+        public String getId() {
+            return message.getId();
+        }
+
+        @Override
+        public String getReceipt() {
+            return message.getReceipt();
+        }
+
+        @Override
+        public String getBody() {
+            return message.getBody();
+        }
+
+        @Override
+        public Map<String, String> getAttributes() {
+            return message.getAttributes();
+        }
+
+        @Override
+        public String toString() {
+            return message.toString();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+/**
+ * Reported by a {@link LeaseRenewingMessageProvider} for a message that no longer exists on its queue, typically because
+ * it was deleted by its handler while its lease was being renewed. The {@link LeaseRenewer} drops such leases quietly.
+ */
+public class MessageGoneException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MessageGoneException(String message) {
+        super(message);
+    }
+}
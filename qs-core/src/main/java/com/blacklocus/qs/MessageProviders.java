@@ -15,14 +15,23 @@
  */
 package com.blacklocus.qs;
 
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provide some common functionality to wrap around existing
@@ -30,6 +39,11 @@ import java.util.Iterator;
  */
 public class MessageProviders {
 
+    /**
+     * default most messages held in one window by {@link #coalescing(MessageProvider, Function, long)}
+     */
+    public static final int DEFAULT_MAX_COALESCED = 10000;
+
     /**
      * Chain together a safe and an empty message return tracking
      * {@link MessageProvider}.
@@ -61,59 +75,16 @@ public class MessageProviders {
     /**
      * Wrap each call of the given {@link MessageProvider} with a try/catch
      * such that they always return correctly without throwing an
-     * {@link Exception}. Caught {@link Exception}'s are swallowed and logged.
+     * {@link Exception}. Caught {@link Exception}'s are swallowed and logged,
+     * each distinct stack trace at most once a minute. Consecutive failures
+     * of next() are backed off exponentially. See {@link SafeMessageProvider}
+     * to tune the backoff or add a circuit breaker.
      *
      * @param messageProvider the base {@link MessageProvider} to wrap
      * @return the safely wrapped {@link MessageProvider}
      */
-    public static MessageProvider newSafeMessageProvider(final MessageProvider messageProvider) {
-        return new MessageProvider() {
-
-            private final Logger log = LoggerFactory.getLogger(getClass());
-
-            @Override
-            public Iterator<Collection<Message>> iterator() {
-                return this;
-            }
-
-            @Override
-            public boolean hasNext() {
-                try {
-                    return messageProvider.hasNext();
-                } catch (Throwable t) {
-                    log.error("An error occurred during hasNext()", t);
-                    return true;
-                }
-            }
-
-            @Override
-            public Collection<Message> next() {
-                try {
-                    return messageProvider.next();
-                } catch (Throwable t) {
-                    log.error("An error occurred during next()", t);
-                    return Collections.emptyList();
-                }
-            }
-
-            @Override
-            public void remove() {
-                try {
-                    messageProvider.remove();
-                } catch (Throwable t) {
-                    log.error("An error occurred during remove()", t);
-                }
-            }
-
-            @Override
-            public void delete(Message message) {
-                try {
-                    messageProvider.delete(message);
-                } catch (Throwable t) {
-                    log.error("An error occurred during delete()", t);
-                }
-            }
-        };
+    public static MessageProvider newSafeMessageProvider(MessageProvider messageProvider) {
+        return new SafeMessageProvider(messageProvider);
     }
 
     /**
@@ -261,12 +232,290 @@ public class MessageProviders {
         };
     }
 
+    /**
+     * Fetch batches from the given {@link MessageProvider} on a background thread, up to <code>depth</code> batches
+     * ahead of the reader, so that receive latency no longer sits between batches on the reading thread.
+     * {@link MessageProvider#delete(Message)} is called directly on the given provider, so it must be thread-safe.
+     * Close the returned provider once done reading to stop the background fetch.
+     *
+     * @see PrefetchingQueueItemProvider
+     */
+    public static PrefetchingMessageProvider prefetching(MessageProvider messageProvider, int depth) {
+        return new PrefetchingMessageProvider(messageProvider, depth);
+    }
+
+    /**
+     * Collect messages across several reads of the given {@link MessageProvider} into batches of up to
+     * <code>maxBatchSize</code>, handing on a partial batch once its first message has waited <code>maxDelayMs</code>.
+     * {@link MessageProvider#delete(Message)} still deletes one message at a time.
+     *
+     * @see AccumulatingQueueItemProvider
+     */
+    public static MessageProvider accumulating(final MessageProvider messageProvider, int maxBatchSize, long maxDelayMs) {
+        final AccumulatingQueueItemProvider<Message> accumulator = new AccumulatingQueueItemProvider<Message>(
+                messageProvider, maxBatchSize, maxDelayMs, TimeUnit.MILLISECONDS);
+
+        return new DelegatingMessageProvider(messageProvider) {
+            @Override
+            public boolean hasNext() {
+                return accumulator.hasNext();
+            }
+
+            @Override
+            public Collection<Message> next() {
+                return accumulator.next();
+            }
+        };
+    }
+
+    /**
+     * Like {@link #coalescing(MessageProvider, Function, long, int)}, holding at most
+     * {@link #DEFAULT_MAX_COALESCED} messages per window.
+     */
+    public static MessageProvider coalescing(MessageProvider messageProvider,
+                                             Function<? super Message, ?> keyFn,
+                                             long windowMs) {
+        return coalescing(messageProvider, keyFn, windowMs, DEFAULT_MAX_COALESCED);
+    }
+
+    /**
+     * Hold messages for up to <code>windowMs</code> after the first arrives and pass on only the newest per key, where
+     * newest means last received. Superseded messages are deleted through the given provider's
+     * {@link MessageProvider#delete(Message)} without ever reaching the handler. Messages whose key is null are never
+     * coalesced. Messages are passed on in the order their key was last seen.
+     * <p/>
+     * A window closes early once <code>maxHeld</code> messages are held, so two messages of the same key may still
+     * both be handled when they fall into different windows.
+     *
+     * @param messageProvider the base {@link MessageProvider} to wrap
+     * @param keyFn           extracts the key, e.g. an entity id, whose newest message supersedes older ones
+     * @param windowMs        how long in ms to hold messages so that newer ones can supersede them
+     * @param maxHeld         the most messages to hold in one window
+     * @see AccumulatingQueueItemProvider
+     */
+    public static MessageProvider coalescing(final MessageProvider messageProvider,
+                                             final Function<? super Message, ?> keyFn,
+                                             long windowMs,
+                                             int maxHeld) {
+        final AccumulatingQueueItemProvider<Message> accumulator = new AccumulatingQueueItemProvider<Message>(
+                messageProvider, maxHeld, windowMs, TimeUnit.MILLISECONDS);
+
+        return new DelegatingMessageProvider(messageProvider) {
+
+            private final Logger log = LoggerFactory.getLogger(getClass());
+
+            @Override
+            public boolean hasNext() {
+                return accumulator.hasNext();
+            }
+
+            @Override
+            public Collection<Message> next() {
+                Collection<Message> held = accumulator.next();
+                if (held.size() < 2) {
+                    return held;
+                }
+                Map<Object, Message> newest = new LinkedHashMap<Object, Message>(held.size() * 2);
+                for (Message message : held) {
+                    Object key = keyFn.apply(message);
+                    if (key == null) {
+                        // a key equal to nothing else
+                        key = new Object();
+                    }
+                    Message superseded = newest.remove(key);
+                    newest.put(key, message);
+                    if (superseded != null) {
+                        try {
+                            messageProvider.delete(superseded);
+                        } catch (RuntimeException e) {
+                            log.warn("Failed to delete superseded message {}", superseded.getId(), e);
+                        }
+                    }
+                }
+                return new ArrayList<Message>(newest.values());
+            }
+        };
+    }
+
+    /**
+     * Serve several independent providers from one reader, interleaving their batches by deficit round-robin so that
+     * each yields messages in proportion to its weight. Providers that come up empty are skipped with exponential
+     * backoff. {@link MessageProvider#delete(Message)} is routed to the provider the message came from. Iteration
+     * order of the map decides the order providers take turns in.
+     *
+     * @param weightedProviders each provider with its weight, the number of messages it may yield per round
+     * @see MergedMessageProvider
+     */
+    public static MessageProvider merged(Map<? extends MessageProvider, Integer> weightedProviders) {
+        return new MergedMessageProvider(weightedProviders,
+                MergedMessageProvider.DEFAULT_INITIAL_BACKOFF_MS, MergedMessageProvider.DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * Hand on at most <code>permitsPerSecond</code> messages per second on average, and at most <code>burst</code> at
+     * once after a quiet period. Batches are split when there are not enough permits, and the remainder is held until
+     * there are, without reading further messages in the meantime. The reading thread does the waiting.
+     *
+     * @see RateLimitedQueueItemProvider
+     */
+    public static MessageProvider rateLimited(final MessageProvider messageProvider, double permitsPerSecond, int burst) {
+        final RateLimitedQueueItemProvider<Message> limiter =
+                new RateLimitedQueueItemProvider<Message>(messageProvider, permitsPerSecond, burst);
+
+        return new DelegatingMessageProvider(messageProvider) {
+            @Override
+            public boolean hasNext() {
+                return limiter.hasNext();
+            }
+
+            @Override
+            public Collection<Message> next() {
+                return limiter.next();
+            }
+        };
+    }
+
+    /**
+     * Drop redelivered copies of messages that were already handled, so that they are not handled twice. A message
+     * counts as handled once it has been deleted through the returned provider, at which point its
+     * {@link Message#getId()} is remembered for <code>ttlMs</code>. Later copies of it are dropped and deleted. A
+     * message that failed, or that was never deleted for any other reason, is not remembered and so is handled again
+     * when redelivered. Copies of the same id within a single batch are dropped but left in the queue, so that they
+     * are delivered again after the first copy was either handled, and then deleted as duplicates, or not.
+     * <p/>
+     * Remembered ids are kept in a compact, fixed-size structure of 32 to 64 bytes per unit of <code>capacity</code>.
+     * Ids are remembered for at least <code>ttlMs</code> unless more than <code>capacity</code> messages are deleted
+     * within that time, in which case the oldest are forgotten early.
+     *
+     * @param messageProvider the base {@link MessageProvider} to wrap
+     * @param capacity        the number of distinct ids to remember
+     * @param ttlMs           how long in ms to remember an id
+     */
+    public static MessageProvider deduplicating(final MessageProvider messageProvider, int capacity, long ttlMs) {
+        final RecentIds handled = new RecentIds(capacity, ttlMs, TimeUnit.MILLISECONDS);
+
+        return new DelegatingMessageProvider(messageProvider) {
+
+            private final Logger log = LoggerFactory.getLogger(getClass());
+
+            @Override
+            public Collection<Message> next() {
+                Collection<Message> messages = messageProvider.next();
+                Set<String> batchIds = messages.size() > 1 ? new HashSet<String>(messages.size() * 2) : null;
+                List<Message> unique = null;
+                int i = 0;
+                for (Message message : messages) {
+                    boolean wasHandled;
+                    synchronized (handled) {
+                        wasHandled = handled.contains(message.getId());
+                    }
+                    boolean repeated = batchIds != null && !batchIds.add(message.getId());
+                    if (!wasHandled && !repeated) {
+                        if (unique != null) {
+                            unique.add(message);
+                        }
+                    } else {
+                        if (unique == null) {
+                            // first duplicate, copy what came before it
+                            unique = new ArrayList<Message>(messages.size());
+                            Iterator<Message> it = messages.iterator();
+                            for (int j = 0; j < i; j++) {
+                                unique.add(it.next());
+                            }
+                        }
+                        if (wasHandled) {
+                            log.debug("Dropping and deleting already handled message {}", message.getId());
+                            try {
+                                messageProvider.delete(message);
+                            } catch (RuntimeException e) {
+                                log.warn("Failed to delete duplicate message {}", message.getId(), e);
+                            }
+                        } else {
+                            log.debug("Dropping repeat of message {} within a batch", message.getId());
+                        }
+                    }
+                    ++i;
+                }
+                return unique == null ? messages : unique;
+            }
+
+            @Override
+            public void delete(Message message) {
+                messageProvider.delete(message);
+                synchronized (handled) {
+                    handled.add(message.getId());
+                }
+            }
+
+            @Override
+            public Map<Message, Exception> deleteBatch(Collection<Message> messages) {
+                Map<Message, Exception> failures = MessageProviders.deleteBatch(messageProvider, messages);
+                synchronized (handled) {
+                    for (Message message : messages) {
+                        if (!failures.containsKey(message)) {
+                            handled.add(message.getId());
+                        }
+                    }
+                }
+                return failures;
+            }
+        };
+    }
+
+    /**
+     * Take {@link MessageProvider#delete(Message)} off the calling thread: deletes are collected and carried out on a
+     * background thread in groups of up to <code>maxBatch</code>, each waiting at most <code>maxDelayMs</code> for its
+     * group to fill. Failed deletes are logged.
+     *
+     * @see BatchingDeleteMessageProvider
+     */
+    public static BatchingDeleteMessageProvider batchingDeletes(MessageProvider messageProvider,
+                                                                int maxBatch,
+                                                                long maxDelayMs) {
+        return batchingDeletes(messageProvider, maxBatch, maxDelayMs, BatchingDeleteMessageProvider.LOG_FAILURES);
+    }
+
+    /**
+     * Like {@link #batchingDeletes(MessageProvider, int, long)}, reporting each failed delete to the given callback.
+     */
+    public static BatchingDeleteMessageProvider batchingDeletes(MessageProvider messageProvider,
+                                                                int maxBatch,
+                                                                long maxDelayMs,
+                                                                DeleteFailureCallback failureCallback) {
+        return new BatchingDeleteMessageProvider(messageProvider, maxBatch, maxDelayMs, failureCallback);
+    }
+
+    /**
+     * Delete the messages through {@link BatchDeletingMessageProvider#deleteBatch(Collection)} if the given provider
+     * supports it, otherwise one at a time.
+     *
+     * @return each message that could not be deleted with the reason why, empty if all were deleted
+     */
+    public static Map<Message, Exception> deleteBatch(MessageProvider messageProvider, Collection<Message> messages) {
+        if (messageProvider instanceof BatchDeletingMessageProvider) {
+            return ((BatchDeletingMessageProvider) messageProvider).deleteBatch(messages);
+        }
+        Map<Message, Exception> failures = new HashMap<Message, Exception>();
+        for (Message message : messages) {
+            try {
+                messageProvider.delete(message);
+            } catch (Exception e) {
+                failures.put(message, e);
+            }
+        }
+        return failures;
+    }
+
     public static interface NextCallback {
         void next(Collection<Message> messages);
     }
+
+    public static interface DeleteFailureCallback {
+        void failed(Message message, Exception error);
+    }
 }
 
-class DelegatingMessageProvider implements MessageProvider {
+class DelegatingMessageProvider implements BatchDeletingMessageProvider {
 
     final MessageProvider messageProvider;
 
@@ -298,4 +547,9 @@ class DelegatingMessageProvider implements MessageProvider {
     public void delete(Message message) {
         messageProvider.delete(message);
     }
+
+    @Override
+    public Map<Message, Exception> deleteBatch(Collection<Message> messages) {
+        return MessageProviders.deleteBatch(messageProvider, messages);
+    }
 }
\ No newline at end of file
@@ -15,6 +15,7 @@
  */
 package com.blacklocus.qs;
 
+import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -27,6 +28,8 @@ import java.util.concurrent.ExecutorService;
  */
 public class MessageQueueReader<T, R> extends QueueReader<Message, T, R> {
 
+    protected LeaseRenewer leaseRenewer;
+
     /**
      * Construct a new MessageQueueReader with the default idle timeout.
      *
@@ -55,4 +58,46 @@ public class MessageQueueReader<T, R> extends QueueReader<Message, T, R> {
         super(messageProvider, handler, executor, sleepMs);
     }
 
-}
\ No newline at end of file
+    /**
+     * Construct a new MessageQueueReader that hands whole batches of messages to a {@link BatchQueueItemHandler}.
+     *
+     * @param messageProvider provider to endlessly pull messages from
+     * @param batchHandler    handler implementation to convert and process batches of messages
+     * @param executor        executor service used for forking batch handler processing
+     * @param sleepMs         how long to sleep in ms between reads from the queue where no messages are returned
+     * @param maxBatchSize    message batches larger than this are split before being handed to the handler
+     */
+    public MessageQueueReader(MessageProvider messageProvider,
+                              BatchQueueItemHandler<Message, T, R> batchHandler,
+                              ExecutorService executor,
+                              long sleepMs,
+                              int maxBatchSize) {
+        super(messageProvider, batchHandler, executor, sleepMs, maxBatchSize);
+    }
+
+    /**
+     * Renew the leases of messages from receipt until this reader is done with them, so that messages taking long to
+     * handle are not delivered again in the meantime.
+     *
+     * @param leaseRenewer over the same provider this reader reads from, may be shared among readers
+     * @return this instance for chaining
+     */
+    public MessageQueueReader<T, R> withLeaseRenewer(LeaseRenewer leaseRenewer) {
+        this.leaseRenewer = leaseRenewer;
+        return this;
+    }
+
+    @Override
+    protected void onReceived(Collection<Message> messages) {
+        if (leaseRenewer != null) {
+            leaseRenewer.track(messages);
+        }
+    }
+
+    @Override
+    protected void onFinished(Message message) {
+        if (leaseRenewer != null) {
+            leaseRenewer.untrack(message);
+        }
+    }
+}
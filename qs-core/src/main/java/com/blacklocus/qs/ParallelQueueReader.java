@@ -0,0 +1,180 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.blacklocus.misc.ExceptingRunnable;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several {@link QueueReader} loops, each on its own thread, all feeding the same executor and handler. This
+ * raises receive throughput beyond what a single reading thread can achieve when every read is a network round trip.
+ * {@link #run()} returns once every reader's provider reports <code>hasNext() == false</code>. Interrupting the thread
+ * that called {@link #run()} interrupts every reader, and {@link #run()} returns once they have all stopped.
+ *
+ * @param <Q> queue item type
+ * @param <T> the type of queue item that this reader can convert
+ * @param <R> the result of processing the converted message
+ */
+public class ParallelQueueReader<Q, T, R> extends ExceptingRunnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelQueueReader.class);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("qs-reader-%d").build();
+
+    protected final Supplier<? extends Iterable<Collection<Q>>> providerSupplier;
+    protected final int readers;
+    protected final QueueItemHandler<Q, T, R> handler;
+    protected final ExecutorService executor;
+    protected final long sleepMs;
+
+    protected InFlightWindow window;
+    protected int maxReceiveSize;
+
+    private final AtomicInteger activeReaders = new AtomicInteger();
+
+    /**
+     * Construct readers over a single provider whose hasNext() and next() are safe to call from several threads.
+     *
+     * @param provider thread-safe provider to endlessly pull messages from
+     * @param readers  number of reading threads
+     * @param handler  handler implementation to convert and process messages
+     * @param executor executor service used for forking message handler processing
+     * @param sleepMs  how long each reader sleeps in ms after a read from the queue where no messages are returned
+     */
+    public ParallelQueueReader(Iterable<Collection<Q>> provider,
+                               int readers,
+                               QueueItemHandler<Q, T, R> handler,
+                               ExecutorService executor,
+                               long sleepMs) {
+        this(Suppliers.ofInstance(provider), readers, handler, executor, sleepMs);
+    }
+
+    /**
+     * Construct readers over a separate provider each, obtained from <code>providerSupplier</code>.
+     *
+     * @param providerSupplier supplies one provider per reader, called <code>readers</code> times on {@link #run()}
+     * @param readers          number of reading threads
+     * @param handler          handler implementation to convert and process messages
+     * @param executor         executor service used for forking message handler processing
+     * @param sleepMs          how long each reader sleeps in ms after a read from the queue where no messages are
+     *                         returned
+     */
+    public ParallelQueueReader(Supplier<? extends Iterable<Collection<Q>>> providerSupplier,
+                               int readers,
+                               QueueItemHandler<Q, T, R> handler,
+                               ExecutorService executor,
+                               long sleepMs) {
+        if (readers < 1) {
+            throw new IllegalArgumentException("readers must be at least 1, was " + readers);
+        }
+        this.providerSupplier = providerSupplier;
+        this.readers = readers;
+        this.handler = handler;
+        this.executor = executor;
+        this.sleepMs = sleepMs;
+    }
+
+    /**
+     * Bound the number of received but not yet completed queue items across all readers.
+     *
+     * @see QueueReader#withMaxInFlight(int, int)
+     */
+    public ParallelQueueReader<Q, T, R> withMaxInFlight(int maxInFlight, int maxReceiveSize) {
+        if (maxReceiveSize < 1) {
+            throw new IllegalArgumentException("maxReceiveSize must be at least 1, was " + maxReceiveSize);
+        }
+        this.window = new InFlightWindow(maxInFlight);
+        this.maxReceiveSize = Math.min(maxReceiveSize, maxInFlight);
+        return this;
+    }
+
+    /**
+     * @return the number of reader loops that have not yet finished
+     */
+    public int getActiveReaders() {
+        return activeReaders.get();
+    }
+
+    /**
+     * @return the number of queue items currently received but not yet completed across all readers, or -1 if there
+     *         is no in-flight window
+     */
+    public int getInFlight() {
+        return window == null ? -1 : window.getOccupancy();
+    }
+
+    @Override
+    protected void go() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>(readers);
+        for (int i = 0; i < readers; i++) {
+            final QueueReader<Q, T, R> reader = newReader(providerSupplier.get());
+            if (window != null) {
+                reader.withInFlightWindow(window, maxReceiveSize);
+            }
+            threads.add(THREAD_FACTORY.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reader.run();
+                    } finally {
+                        activeReaders.decrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        activeReaders.set(readers);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Interrupted. Interrupting {} readers.", readers);
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                Uninterruptibles.joinUninterruptibly(thread);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the reader for one provider. Override to configure readers further, e.g. with
+     * {@link QueueReader#withLeanDispatch(int)}.
+     */
+    protected QueueReader<Q, T, R> newReader(Iterable<Collection<Q>> provider) {
+        return new QueueReader<Q, T, R>(provider, handler, executor, sleepMs);
+    }
+}
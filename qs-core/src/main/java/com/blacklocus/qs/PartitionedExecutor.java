@@ -0,0 +1,132 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared executor in a fixed number of serial lanes. Tasks with equal keys always land in the same
+ * lane and so run one at a time in submission order, while different lanes run in parallel. A lane with pending tasks
+ * occupies at most one executor thread, and a lane waiting on its predecessor occupies none.
+ */
+public class PartitionedExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedExecutor.class);
+
+    private final Executor executor;
+    private final Lane[] lanes;
+
+    /**
+     * @param executor runs the lanes
+     * @param lanes    number of serial lanes, which bounds the parallelism this executor can achieve
+     */
+    public PartitionedExecutor(Executor executor, int lanes) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be at least 1, was " + lanes);
+        }
+        this.executor = executor;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Queue a task behind all previously submitted tasks of the same lane.
+     *
+     * @param key  determines the lane, may be null
+     * @param task the task to run
+     * @throws RejectedExecutionException if the lane needed scheduling and the underlying executor rejected it, in
+     *                                    which case the task will not run
+     */
+    public void execute(Object key, Runnable task) {
+        lanes[laneOf(key)].add(task);
+    }
+
+    /**
+     * @return the number of tasks queued but not yet started across all lanes
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                queued += lane.tasks.size();
+            }
+        }
+        return queued;
+    }
+
+    int laneOf(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        // spread the bits so that keys differing only in high bits do not collide
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    class Lane implements Runnable {
+
+        final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        boolean scheduled = false;
+
+        void add(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    tasks.remove(task);
+                    scheduled = false;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOG.error("Partitioned task failed", t);
+                }
+            }
+        }
+    }
+}
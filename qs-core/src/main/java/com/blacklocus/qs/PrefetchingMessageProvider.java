@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link PrefetchingQueueItemProvider} of {@link Message}s, which deletes directly through the wrapped provider.
+ * {@link #close()} it once done reading to stop the background fetch.
+ *
+ * @see MessageProviders#prefetching(MessageProvider, int)
+ */
+public class PrefetchingMessageProvider extends PrefetchingQueueItemProvider<Message>
+        implements BatchDeletingMessageProvider {
+
+    private final MessageProvider messageProvider;
+
+    /**
+     * @param messageProvider the provider to fetch from and delete through, where deletes must be thread-safe
+     * @param depth           the number of batches to fetch ahead
+     */
+    public PrefetchingMessageProvider(MessageProvider messageProvider, int depth) {
+        super(messageProvider, depth);
+        this.messageProvider = messageProvider;
+    }
+
+    @Override
+    public PrefetchingMessageProvider withReleaser(QueueItemReleaser<? super Message> releaser) {
+        super.withReleaser(releaser);
+        return this;
+    }
+
+    @Override
+    public PrefetchingMessageProvider withIdleStrategy(IdleStrategy idleStrategy) {
+        super.withIdleStrategy(idleStrategy);
+        return this;
+    }
+
+    @Override
+    public void delete(Message message) {
+        messageProvider.delete(message);
+    }
+
+    @Override
+    public Map<Message, Exception> deleteBatch(Collection<Message> messages) {
+        return MessageProviders.deleteBatch(messageProvider, messages);
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link QueueItemProvider#next()} of the wrapped provider on a background thread, buffering up to
+ * <code>depth</code> batches ahead of the consumer. Receive latency then overlaps with processing rather than sitting
+ * between batches on the reading thread.
+ * <p/>
+ * Empty batches are not buffered; after one, the background thread waits per its {@link IdleStrategy} before fetching
+ * again. {@link #hasNext()} blocks until the next batch has been fetched, or the wrapped provider is exhausted, but at
+ * most {@link #MAX_WAIT_MS}, after which <code>next()</code> returns an empty batch. The wait takes the place of idling,
+ * so a {@link QueueReader} over this provider needs little or no idle time of its own, and gets to notice a
+ * {@link QueueReader#shutdown} regularly. Errors thrown by the wrapped provider's <code>next()</code> are rethrown
+ * from this provider's <code>next()</code> in order.
+ * Buffered batches count as received, so with an in-flight window on the {@link QueueReader} up to
+ * <code>depth</code> batches may be held beyond it. For the same reason a {@link QueueReader#shutdown} does not
+ * release them; {@link #close()} the prefetcher after the reader to hand them to the
+ * {@link #withReleaser(QueueItemReleaser) releaser}.
+ *
+ * @param <Q> queue item type
+ */
+public class PrefetchingQueueItemProvider<Q> implements QueueItemProvider<Q>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrefetchingQueueItemProvider.class);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("qs-prefetch-%d").setDaemon(true).build();
+
+    /**
+     * longest wait in ms of {@link #hasNext()} for the next batch
+     */
+    public static final long MAX_WAIT_MS = 1000;
+
+    /**
+     * default wait in ms of the background thread after the wrapped provider returned an empty batch
+     */
+    public static final long DEFAULT_IDLE_MS = 100;
+
+    private static final Object END = new Object();
+
+    private static final Object NONE = new Object();
+
+    private final QueueItemProvider<Q> provider;
+    private final BlockingQueue<Object> buffer;
+
+    private volatile QueueItemReleaser<? super Q> releaser;
+    private IdleStrategy idleStrategy = IdleStrategies.fixed(DEFAULT_IDLE_MS);
+    private volatile Thread fetcher;
+    private Object head;
+    private volatile boolean closed = false;
+
+    /**
+     * @param provider the provider to fetch from, which is only ever called from the background thread
+     * @param depth    the number of batches to fetch ahead
+     */
+    public PrefetchingQueueItemProvider(QueueItemProvider<Q> provider, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1, was " + depth);
+        }
+        this.provider = provider;
+        this.buffer = new ArrayBlockingQueue<Object>(depth);
+    }
+
+    /**
+     * @param releaser hands back batches that were fetched but not yet consumed when this provider is closed, instead
+     *                 of dropping them
+     * @return this
+     */
+    public PrefetchingQueueItemProvider<Q> withReleaser(QueueItemReleaser<? super Q> releaser) {
+        this.releaser = releaser;
+        return this;
+    }
+
+    /**
+     * @param idleStrategy decides how long the background thread waits after the wrapped provider returned an empty
+     *                     batch, exclusive to this provider
+     * @return this
+     */
+    public PrefetchingQueueItemProvider<Q> withIdleStrategy(IdleStrategy idleStrategy) {
+        this.idleStrategy = idleStrategy;
+        return this;
+    }
+
+    @Override
+    public Iterator<Collection<Q>> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (head == null) {
+            if (closed) {
+                return false;
+            }
+            if (fetcher == null) {
+                fetcher = THREAD_FACTORY.newThread(new Fetcher());
+                fetcher.start();
+            }
+            try {
+                head = buffer.poll(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (head == null) {
+                head = NONE;
+            }
+        }
+        return head != END;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Collection<Q> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object next = head;
+        head = null;
+        if (next == NONE) {
+            return Collections.emptyList();
+        }
+        if (next instanceof Failure) {
+            throw Throwables.propagate(((Failure) next).error);
+        }
+        return (Collection<Q>) next;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops fetching. Batches already buffered, and any batch the wrapped provider returns after this, are handed to
+     * the releaser if there is one, otherwise dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (fetcher != null) {
+            fetcher.interrupt();
+        }
+        releaseBuffered();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void releaseBuffered() {
+        Object item;
+        while ((item = buffer.poll()) != null) {
+            if (item == END) {
+                // Only ever the last item, and the consumer still needs to see it.
+                buffer.offer(END);
+                return;
+            }
+            if (!(item instanceof Failure)) {
+                release((Collection<Q>) item);
+            }
+        }
+    }
+
+    private void release(Collection<Q> batch) {
+        QueueItemReleaser<? super Q> releaser = this.releaser;
+        if (releaser == null) {
+            LOG.debug("Dropping {} prefetched items on close", batch.size());
+            return;
+        }
+        try {
+            releaser.release(batch);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to release {} prefetched items", batch.size(), e);
+        }
+    }
+
+    class Fetcher implements Runnable {
+        @Override
+        public void run() {
+            IdleStrategy idleStrategy = PrefetchingQueueItemProvider.this.idleStrategy;
+            try {
+                while (!closed && provider.hasNext()) {
+                    Object batch;
+                    try {
+                        batch = provider.next();
+                    } catch (Throwable t) {
+                        batch = new Failure(t);
+                    }
+                    if (batch instanceof Collection && ((Collection<?>) batch).isEmpty()) {
+                        try {
+                            idleStrategy.idle();
+                        } catch (InterruptedException e) {
+                            // only close() interrupts this thread, which the loop condition then sees
+                        }
+                        continue;
+                    }
+                    idleStrategy.reset();
+                    handOver(batch);
+                }
+            } catch (Throwable t) {
+                LOG.error("An error occurred during hasNext(). Prefetching stops.", t);
+                handOver(new Failure(t));
+            } finally {
+                handOver(END);
+            }
+        }
+
+        /**
+         * Puts the item in the buffer, or once closed releases it, so that {@link #END} always reaches the consumer.
+         */
+        @SuppressWarnings("unchecked")
+        private void handOver(Object item) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    if (closed) {
+                        // A put may have slipped in after close() drained the buffer.
+                        releaseBuffered();
+                        if (item == END) {
+                            buffer.offer(END);
+                        } else if (!(item instanceof Failure)) {
+                            release((Collection<Q>) item);
+                        }
+                        return;
+                    }
+                    try {
+                        buffer.put(item);
+                        return;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    static class Failure {
+        final Throwable error;
+
+        Failure(Throwable error) {
+            this.error = error;
+        }
+    }
+}
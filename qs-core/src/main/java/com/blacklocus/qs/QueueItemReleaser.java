@@ -0,0 +1,36 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Collection;
+
+/**
+ * Hands queue items that were received but will not be handled back to their source, so that they become available
+ * again sooner than they otherwise would, e.g. before an SQS visibility timeout runs out.
+ *
+ * @param <Q> queue item type
+ * @see QueueReader#withReleaser(QueueItemReleaser)
+ */
+public interface QueueItemReleaser<Q> {
+
+    /**
+     * Make the given queue items available to be received again. Implementations should make a best effort and not
+     * throw; a queue item that could not be released is simply redelivered later.
+     *
+     * @param queueItems received queue items that were not handled
+     */
+    void release(Collection<? extends Q> queueItems);
+}
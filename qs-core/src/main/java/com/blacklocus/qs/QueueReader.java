@@ -16,13 +16,31 @@
 package com.blacklocus.qs;
 
 import com.blacklocus.misc.ExceptingRunnable;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A more generalized version of the {@link MessageQueueReader}
@@ -41,10 +59,58 @@ public class QueueReader<Q, T, R> extends ExceptingRunnable {
      */
     public static final long DEFAULT_SLEEP_MS = 20 * 1000;
 
+    /**
+     * {@link #maxBatchSize} value which hands each provider batch to a {@link BatchQueueItemHandler} as-is
+     */
+    public static final int UNLIMITED_BATCH_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * default number of idle {@link ItemTask} carriers retained for reuse by lean dispatch
+     */
+    public static final int DEFAULT_CARRIER_POOL_SIZE = 1024;
+
+    private static final QueueReaderMetrics NO_METRICS = new AbstractQueueReaderMetrics() {
+    };
+
     protected Iterable<Collection<Q>> queueItemProvider;
     protected QueueItemHandler<Q, T, R> handler;
+    protected BatchQueueItemHandler<Q, T, R> batchHandler;
+    protected AsyncQueueItemHandler<Q, T, R> asyncHandler;
     protected ExecutorService executor;
     protected long sleepMs;
+    protected IdleStrategy idleStrategy;
+    protected int maxBatchSize;
+    protected InFlightWindow window;
+    protected int maxReceiveSize;
+    protected BlockingQueue<ItemTask> carriers;
+    protected PartitionedExecutor partitions;
+    protected Function<? super Q, ?> partitionKey;
+    protected Stage convertStage;
+    protected Stage processStage;
+    protected QueueReaderMetrics metrics = NO_METRICS;
+
+    /**
+     * queue items received but not yet completed, tracked so that they can be waited for
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+    private final Object outstandingLock = new Object();
+
+    protected QueueItemReleaser<? super Q> releaser;
+    private volatile boolean stopping = false;
+    /**
+     * set on shutdown when there is a releaser, after which queue items not yet started are released instead
+     */
+    private volatile boolean releasing = false;
+    /**
+     * queue items skipped during shutdown, released in one go once in-flight items are done
+     */
+    private final List<Q> pendingRelease = new ArrayList<Q>();
+    private boolean pendingReleaseFlushed = false;
+    private final Object readerLock = new Object();
+    private Thread readerThread;
+
+    protected HashedWheelTimer deadlineTimer;
+    protected long deadlineNs;
 
     /**
      * Construct a new MessageQueueReader with the default idle timeout.
@@ -75,43 +141,1002 @@ public class QueueReader<Q, T, R> extends ExceptingRunnable {
         this.handler = handler;
         this.executor = executor;
         this.sleepMs = sleepMs;
+        this.idleStrategy = IdleStrategies.fixed(sleepMs);
+        this.maxBatchSize = 1;
+    }
+
+    /**
+     * Construct a new QueueReader that hands whole provider batches to a {@link BatchQueueItemHandler}.
+     *
+     * @param provider     provider to endlessly pull messages from
+     * @param batchHandler handler implementation to convert and process batches of messages
+     * @param executor     executor service used for forking batch handler processing
+     * @param sleepMs      how long to sleep in ms between reads from the queue where no messages are returned
+     * @param maxBatchSize provider batches larger than this are split into multiple handler batches of at most this
+     *                     size, or {@link #UNLIMITED_BATCH_SIZE} to dispatch provider batches as they are received
+     */
+    public QueueReader(Iterable<Collection<Q>> provider,
+                       BatchQueueItemHandler<Q, T, R> batchHandler,
+                       ExecutorService executor,
+                       long sleepMs,
+                       int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1, was " + maxBatchSize);
+        }
+        this.queueItemProvider = provider;
+        this.batchHandler = batchHandler;
+        this.executor = executor;
+        this.sleepMs = sleepMs;
+        this.idleStrategy = IdleStrategies.fixed(sleepMs);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Construct a new QueueReader over an {@link AsyncQueueItemHandler}. Since processing does not hold executor
+     * threads, concurrency is bounded by an in-flight window instead, see {@link #withMaxInFlight(int, int)}.
+     * Handler callbacks run on whichever thread completes the future returned by
+     * {@link AsyncQueueItemHandler#processAsync(Object)}.
+     *
+     * @param provider       provider to endlessly pull messages from
+     * @param asyncHandler   handler implementation to convert messages and start their processing
+     * @param executor       executor service used for forking conversion and the start of processing
+     * @param sleepMs        how long to sleep in ms between reads from the queue where no messages are returned
+     * @param maxInFlight    maximum number of queue items whose processing has not yet completed
+     * @param maxReceiveSize the most queue items a single read from the provider will return
+     */
+    public QueueReader(Iterable<Collection<Q>> provider,
+                       AsyncQueueItemHandler<Q, T, R> asyncHandler,
+                       ExecutorService executor,
+                       long sleepMs,
+                       int maxInFlight,
+                       int maxReceiveSize) {
+        this.queueItemProvider = provider;
+        this.asyncHandler = asyncHandler;
+        this.executor = executor;
+        this.sleepMs = sleepMs;
+        this.idleStrategy = IdleStrategies.fixed(sleepMs);
+        this.maxBatchSize = 1;
+        withMaxInFlight(maxInFlight, maxReceiveSize);
+    }
+
+    /**
+     * Replace the fixed <code>sleepMs</code> wait after reads that return no queue items.
+     *
+     * @param idleStrategy decides how long to wait after each empty read, exclusive to this reader
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withIdleStrategy(IdleStrategy idleStrategy) {
+        this.idleStrategy = idleStrategy;
+        return this;
+    }
+
+    /**
+     * @return the strategy deciding how long this reader waits after reads that return no queue items, whose
+     *         {@link IdleStrategy#wake()} may be used to end a wait early
+     */
+    public IdleStrategy getIdleStrategy() {
+        return idleStrategy;
+    }
+
+    /**
+     * Bound the number of received but not yet completed queue items. Before each read from the provider the reader
+     * blocks until <code>maxReceiveSize</code> items fit in the window, then returns whatever the provider did not use.
+     * The bound holds as long as the provider never returns more than <code>maxReceiveSize</code> items from a single
+     * read, e.g. 10 for SQS. Should it return more, the reader blocks on the excess before dispatching, and a batch
+     * larger than the whole window overdraws it, see {@link InFlightWindow#overdraw(int)}.
+     *
+     * @param maxInFlight    maximum number of queue items in flight at once
+     * @param maxReceiveSize the most queue items a single read from the provider will return
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withMaxInFlight(int maxInFlight, int maxReceiveSize) {
+        return withInFlightWindow(new InFlightWindow(maxInFlight), maxReceiveSize);
+    }
+
+    /**
+     * Like {@link #withMaxInFlight(int, int)} but with a given window, which may be shared by several readers to bound
+     * the items in flight across all of them.
+     *
+     * @param window         the in-flight window to claim received items from
+     * @param maxReceiveSize the most queue items a single read from the provider will return
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withInFlightWindow(InFlightWindow window, int maxReceiveSize) {
+        if (maxReceiveSize < 1) {
+            throw new IllegalArgumentException("maxReceiveSize must be at least 1, was " + maxReceiveSize);
+        }
+        this.window = window;
+        this.maxReceiveSize = Math.min(maxReceiveSize, window.getCapacity());
+        return this;
+    }
+
+    /**
+     * @return the number of queue items currently received but not yet completed, or -1 if this reader has no
+     *         in-flight window
+     */
+    public int getInFlight() {
+        return window == null ? -1 : window.getOccupancy();
+    }
+
+    /**
+     * @return the in-flight window capacity in queue items, or -1 if this reader has no in-flight window
+     */
+    public int getMaxInFlight() {
+        return window == null ? -1 : window.getCapacity();
+    }
+
+    /**
+     * Dispatch queue items through {@link ExecutorService#execute(Runnable)} using pooled task carriers, rather than
+     * allocating a {@link Callable}, {@link Future} and result {@link Pair} per item. This only applies when the
+     * handler does not consume futures, i.e. inherits the no-op {@link AbstractQueueItemHandler#withFuture}. Otherwise
+     * the standard dispatch path is kept.
+     *
+     * @param carrierPoolSize maximum number of idle carriers retained for reuse
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withLeanDispatch(int carrierPoolSize) {
+        if (handler == null) {
+            throw new IllegalStateException("Lean dispatch applies to QueueItemHandlers only.");
+        }
+        if (consumesFutures(handler)) {
+            LOG.warn("{} overrides withFuture. Lean dispatch is disabled.", handler.getClass().getName());
+            carriers = null;
+        } else {
+            carriers = new ArrayBlockingQueue<ItemTask>(carrierPoolSize);
+        }
+        return this;
+    }
+
+    /**
+     * Dispatch queue items with equal keys one at a time, in the order received, while items with different keys still
+     * run in parallel. Keys are hashed to one of <code>lanes</code> serial lanes on the executor. An item waiting for an
+     * earlier item of its lane does not occupy an executor thread. Applies to {@link QueueItemHandler} and
+     * {@link AsyncQueueItemHandler} dispatch, in the latter case ordering the start of processing.
+     *
+     * @param partitionKey extracts the ordering key of a queue item, e.g. a customer id
+     * @param lanes        number of serial lanes, which bounds the parallelism of this reader
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withPartitioning(Function<? super Q, ?> partitionKey, int lanes) {
+        this.partitions = new PartitionedExecutor(executor, lanes);
+        this.partitionKey = partitionKey;
+        return this;
+    }
+
+    /**
+     * Run {@link QueueItemHandler#convert(Object)} and {@link QueueItemHandler#process(Object)} in separate stages,
+     * each with its own threads and bounded queue, rather than back to back on one executor thread. CPU-bound
+     * conversion and I/O-bound processing can then each be sized for their own bottleneck. The result callbacks run
+     * on the process stage. A full process stage blocks the convert stage, which in turn blocks the reader. This
+     * reader's executor is not used for {@link QueueItemHandler} dispatch while staged. Takes precedence over lean
+     * dispatch and partitioning.
+     *
+     * @param convertStage runs conversion, typically sized to the number of cores
+     * @param processStage runs processing and the result callbacks
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withStages(Stage convertStage, Stage processStage) {
+        if (handler == null) {
+            throw new IllegalStateException("Staged dispatch applies to QueueItemHandlers only.");
+        }
+        this.convertStage = convertStage;
+        this.processStage = processStage;
+        return this;
+    }
+
+    /**
+     * Bound how long handling a single queue item may take, see {@link #withDeadline(long, TimeUnit, HashedWheelTimer)},
+     * enforced by a timer shared by all readers in this JVM.
+     *
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withDeadline(long timeout, TimeUnit unit) {
+        return withDeadline(timeout, unit, SharedDeadlineTimer.INSTANCE);
+    }
+
+    /**
+     * Bound how long handling a single queue item may take. The deadline covers conversion, processing and onSuccess,
+     * or with {@link #withStages(Stage, Stage) stages} each of conversion and processing, or with an
+     * {@link AsyncQueueItemHandler} each of conversion and the future returned by processAsync. Batches get one
+     * deadline per batch.
+     * <p/>
+     * When the deadline passes, the handling thread's stack is logged and the thread is interrupted, or the
+     * asynchronous future is cancelled. Handling then fails with an {@link ItemDeadlineException} that carries the
+     * captured stack, once the handler gives up its thread. A handler that ignores interrupts keeps its thread until
+     * it returns by itself, so the logged stack is what to look into.
+     *
+     * @param timeout how long handling may take, checked with the precision of the timer's tick
+     * @param unit    unit of <code>timeout</code>
+     * @param timer   expires the deadlines, may be shared among readers
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withDeadline(long timeout, TimeUnit unit, HashedWheelTimer timer) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive, was " + timeout);
+        }
+        this.deadlineTimer = timer;
+        this.deadlineNs = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Report receive latency and sizes, idle time, executor queue time, conversion and processing time and outcomes to
+     * the given metrics. Measurements are passed as primitives, so that with an allocation-free implementation such
+     * as {@link QueueReaderStats} the item path stays allocation-free.
+     *
+     * @param metrics receives measurements, possibly shared with other readers
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withMetrics(QueueReaderMetrics metrics) {
+        this.metrics = metrics == null ? NO_METRICS : metrics;
+        return this;
+    }
+
+    /**
+     * @return the metrics this reader reports to
+     */
+    public QueueReaderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Hand queue items that were received but not started back to their source when this reader is
+     * {@link #shutdown(long, TimeUnit) shut down}. Without a releaser, shutdown lets every received item run.
+     *
+     * @param releaser e.g. a {@link MessageProvider} able to make messages visible again right away
+     * @return this instance for chaining
+     */
+    public QueueReader<Q, T, R> withReleaser(QueueItemReleaser<? super Q> releaser) {
+        this.releaser = releaser;
+        return this;
+    }
+
+    /**
+     * @return whether lean dispatch is in effect for this reader
+     */
+    public boolean isLeanDispatch() {
+        return carriers != null;
+    }
+
+    /**
+     * @return true unless the handler inherits the no-op {@link AbstractQueueItemHandler#withFuture}
+     */
+    static boolean consumesFutures(QueueItemHandler<?, ?, ?> handler) {
+        try {
+            return handler.getClass().getMethod("withFuture", Object.class, Future.class).getDeclaringClass()
+                    != AbstractQueueItemHandler.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
     }
 
     @Override
     public void go() throws Exception {
-        for (Collection<Q> queueItems : queueItemProvider) {
+        synchronized (readerLock) {
+            readerThread = Thread.currentThread();
+        }
+        try {
+            read();
+        } finally {
+            synchronized (readerLock) {
+                readerThread = null;
+                readerLock.notifyAll();
+            }
+        }
+    }
+
+    private void read() {
+        Iterator<Collection<Q>> queueItemIterator = queueItemProvider.iterator();
+        while (!stopping && !Thread.currentThread().isInterrupted() && queueItemIterator.hasNext()) {
             try {
+                Collection<Q> queueItems = receive(queueItemIterator);
                 if (queueItems.size() > 0) {
-                    for (final Q queueItem : queueItems) {
-                        handler.withFuture(queueItem, executor.submit(new Callable<Pair<Q, R>>() {
-                            public Pair<Q, R> call() throws Exception {
-                                T converted = null;
-                                R result = null;
-                                try {
-                                    converted = handler.convert(queueItem);
-                                    result = handler.process(converted);
-                                    handler.onSuccess(queueItem, converted, result);
-                                    return Pair.of(queueItem, result);
-                                } catch (Throwable t) {
-                                    LOG.error("An error occurred while processing item {}", queueItem, t);
-                                    handler.onError(queueItem, converted, t);
-                                    throw new RuntimeException(t);
-                                } finally {
-                                    handler.onComplete(queueItem, converted, result);
-                                }
-                            }
-                        }));
+                    outstanding.addAndGet(queueItems.size());
+                    onReceived(queueItems);
+                    idleStrategy.reset();
+                    if (releasing) {
+                        // received while shutting down, never started
+                        skipAll(queueItems);
+                    } else if (batchHandler != null) {
+                        dispatchBatches(queueItems);
+                    } else if (asyncHandler != null) {
+                        dispatchAsyncItems(queueItems);
+                    } else {
+                        dispatchItems(queueItems);
                     }
                 } else {
-                    LOG.debug("No items available... sleeping for {} ms", sleepMs);
-                    Thread.sleep(sleepMs);
+                    LOG.debug("No items available... idling per {}", idleStrategy);
+                    long idleStart = nanoTime();
+                    idleStrategy.idle();
+                    metrics.idled(nanoTime() - idleStart);
                 }
             } catch (InterruptedException e) {
-                LOG.error("Reader thread interrupted", e);
+                LOG.info("Reader thread interrupted. Stopping.", e);
                 Thread.currentThread().interrupt();
             } catch (Throwable t) {
                 LOG.error("Runtime error in reader thread", t);
             }
         }
     }
+
+    /**
+     * Read the next batch from the provider, claiming room for it in the in-flight window if there is one.
+     */
+    protected Collection<Q> receive(Iterator<Collection<Q>> queueItemIterator) throws InterruptedException {
+        if (window == null) {
+            return next(queueItemIterator);
+        }
+        window.acquire(maxReceiveSize);
+        Collection<Q> queueItems;
+        try {
+            queueItems = next(queueItemIterator);
+        } catch (RuntimeException e) {
+            window.release(maxReceiveSize);
+            throw e;
+        }
+        int size = queueItems.size();
+        if (size < maxReceiveSize) {
+            window.release(maxReceiveSize - size);
+        } else if (size > maxReceiveSize) {
+            LOG.warn("Provider returned {} items, exceeding the expected maximum of {}", size, maxReceiveSize);
+            // wait for as much of the excess as can ever become free, and overdraw the window for the rest, so that a
+            // batch larger than the whole window is still let through rather than waited on forever
+            int excess = size - maxReceiveSize;
+            int waitFor = Math.min(excess, window.getCapacity() - maxReceiveSize);
+            try {
+                window.acquire(waitFor);
+            } catch (InterruptedException e) {
+                window.release(maxReceiveSize);
+                throw e;
+            }
+            window.overdraw(excess - waitFor);
+        }
+        return queueItems;
+    }
+
+    private Collection<Q> next(Iterator<Collection<Q>> queueItemIterator) {
+        long start = nanoTime();
+        Collection<Q> queueItems = queueItemIterator.next();
+        metrics.received(queueItems.size(), nanoTime() - start);
+        return queueItems;
+    }
+
+    /**
+     * @return {@link System#nanoTime()}, or 0 without metrics to skip the cost of reading the clock
+     */
+    protected long nanoTime() {
+        return metrics == NO_METRICS ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Called as queue items finish handling, successfully or not, or are rejected by the executor.
+     */
+    protected void completed(int count) {
+        if (window != null) {
+            window.release(count);
+        }
+        if (outstanding.addAndGet(-count) == 0) {
+            synchronized (outstandingLock) {
+                outstandingLock.notifyAll();
+            }
+        }
+    }
+
+    private ItemDeadline startDeadline(Object queueItem) {
+        return deadlineTimer == null ? null : ItemDeadline.forCurrentThread(deadlineTimer, queueItem, deadlineNs);
+    }
+
+    private static void disarm(ItemDeadline deadline) {
+        if (deadline != null) {
+            deadline.disarm();
+        }
+    }
+
+    private static Throwable deadlineError(ItemDeadline deadline, Throwable error) {
+        return deadline == null ? error : deadline.error(error);
+    }
+
+    /**
+     * Stop reading and wait for queue items already received to complete. If a {@link #withReleaser(QueueItemReleaser)
+     * releaser} is configured, queue items that have not started by the time an executor thread gets to them are
+     * released rather than handled, and only those already running are waited for. Futures of released items, see
+     * {@link QueueItemHandler#withFuture(Object, Future)}, complete with null.
+     * <p/>
+     * If the reading thread is still blocked in the provider when the timeout elapses, it is interrupted. A reader that
+     * has been shut down does not read again.
+     *
+     * @return true if the reading thread stopped and all received queue items completed or were released in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        releasing = releaser != null;
+        stopping = true;
+        idleStrategy.wake();
+
+        boolean stopped = awaitReader(deadline);
+        if (!stopped) {
+            synchronized (readerLock) {
+                if (readerThread != null) {
+                    LOG.warn("Reader thread did not stop within the shutdown timeout. Interrupting it.");
+                    readerThread.interrupt();
+                }
+            }
+        }
+        boolean completed;
+        try {
+            completed = awaitCompletion(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+            flushReleases();
+        }
+        if (!completed) {
+            LOG.warn("{} queue items were still running at the end of the shutdown timeout", outstanding.get());
+        }
+        return stopped && completed;
+    }
+
+    private boolean awaitReader(long deadline) throws InterruptedException {
+        synchronized (readerLock) {
+            long remaining;
+            while (readerThread != null) {
+                if ((remaining = deadline - System.nanoTime()) <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(readerLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip the given queue item if a shutdown is releasing unstarted items. Called where handling would start.
+     *
+     * @return true if the queue item was skipped and is already completed
+     */
+    protected boolean skipped(Q queueItem) {
+        if (!releasing) {
+            return false;
+        }
+        skipAll(Collections.singletonList(queueItem));
+        return true;
+    }
+
+    /**
+     * @see #skipped(Object)
+     */
+    protected boolean skippedAll(Collection<Q> queueItems) {
+        if (!releasing) {
+            return false;
+        }
+        skipAll(queueItems);
+        return true;
+    }
+
+    private void skipAll(Collection<Q> queueItems) {
+        try {
+            boolean releaseNow;
+            synchronized (pendingRelease) {
+                releaseNow = pendingReleaseFlushed;
+                if (!releaseNow) {
+                    pendingRelease.addAll(queueItems);
+                }
+            }
+            if (releaseNow) {
+                release(queueItems);
+            }
+        } finally {
+            finishedAll(queueItems);
+        }
+    }
+
+    private void flushReleases() {
+        List<Q> released;
+        synchronized (pendingRelease) {
+            pendingReleaseFlushed = true;
+            released = new ArrayList<Q>(pendingRelease);
+            pendingRelease.clear();
+        }
+        if (!released.isEmpty()) {
+            release(released);
+        }
+    }
+
+    private void release(Collection<Q> queueItems) {
+        try {
+            LOG.info("Releasing {} unstarted queue items", queueItems.size());
+            releaser.release(queueItems);
+        } catch (Throwable t) {
+            LOG.error("Failed to release {} queue items", queueItems.size(), t);
+        }
+    }
+
+    /**
+     * Called on the reading thread with each non-empty batch read from the provider, before any of it is dispatched.
+     * Must not throw. Does nothing by default.
+     */
+    protected void onReceived(Collection<Q> queueItems) {
+    }
+
+    /**
+     * Called exactly once for each received queue item when this reader is done with it: handled, successfully or
+     * not, released during shutdown, or never dispatched because dispatch failed. Must not throw. Does nothing by
+     * default.
+     */
+    protected void onFinished(Q queueItem) {
+    }
+
+    private void finished(Q queueItem) {
+        try {
+            onFinished(queueItem);
+        } finally {
+            completed(1);
+        }
+    }
+
+    private void finishedAll(Collection<Q> queueItems) {
+        try {
+            for (Q queueItem : queueItems) {
+                onFinished(queueItem);
+            }
+        } finally {
+            completed(queueItems.size());
+        }
+    }
+
+    private void finishedUndispatched(Collection<Q> queueItems, int dispatched) {
+        if (dispatched < queueItems.size()) {
+            finishedAll(dispatched == 0 ? queueItems : Lists.newArrayList(Iterables.skip(queueItems, dispatched)));
+        }
+    }
+
+    /**
+     * @return the number of queue items received but not yet completed
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Wait until every queue item received so far has completed, successfully or not.
+     *
+     * @return false if items were still outstanding when the timeout elapsed
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (outstandingLock) {
+            long remaining;
+            while (outstanding.get() > 0) {
+                if ((remaining = deadline - System.nanoTime()) <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(outstandingLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read on the calling thread until the provider is exhausted, as {@link #run()} does, then wait for every queue
+     * item to complete before returning. Meant for finite providers, e.g. a backfill, so that whatever comes next can
+     * start as soon as the last item is handled. Metrics configured through {@link #withMetrics(QueueReaderMetrics)}
+     * still receive all measurements.
+     *
+     * @return counts, wall time, throughput and duration percentiles of this run
+     * @throws InterruptedException if interrupted while reading or waiting. Items already dispatched keep running.
+     */
+    public CompletionReport runToCompletion() throws Exception {
+        QueueReaderStats runStats = new QueueReaderStats();
+        QueueReaderMetrics configured = metrics;
+        metrics = configured == NO_METRICS ? runStats : new TeeQueueReaderMetrics(configured, runStats);
+        long start = System.nanoTime();
+        try {
+            go();
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Interrupted while reading");
+            }
+            awaitCompletion(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            metrics = configured;
+        }
+        return new CompletionReport(runStats.snapshot(), System.nanoTime() - start);
+    }
+
+    protected void dispatchItems(Collection<Q> queueItems) {
+        int dispatched = 0;
+        try {
+            if (convertStage != null) {
+                for (Q queueItem : queueItems) {
+                    Future<Pair<Q, R>> future = dispatchStagedItem(queueItem);
+                    ++dispatched;
+                    handler.withFuture(queueItem, future);
+                }
+            } else if (carriers != null) {
+                for (Q queueItem : queueItems) {
+                    executeItem(queueItem);
+                    ++dispatched;
+                }
+            } else {
+                for (Q queueItem : queueItems) {
+                    Future<Pair<Q, R>> future = dispatchItem(queueItem);
+                    ++dispatched;
+                    handler.withFuture(queueItem, future);
+                }
+            }
+        } finally {
+            finishedUndispatched(queueItems, dispatched);
+        }
+    }
+
+    protected Future<Pair<Q, R>> dispatchItem(final Q queueItem) {
+        final long dispatchedAt = nanoTime();
+        Callable<Pair<Q, R>> call = new Callable<Pair<Q, R>>() {
+            public Pair<Q, R> call() throws Exception {
+                if (skipped(queueItem)) {
+                    return null;
+                }
+                T converted = null;
+                R result = null;
+                ItemDeadline deadline = null;
+                try {
+                    long start = nanoTime();
+                    metrics.started(start - dispatchedAt);
+                    deadline = startDeadline(queueItem);
+                    converted = handler.convert(queueItem);
+                    long convertedAt = nanoTime();
+                    metrics.converted(convertedAt - start);
+                    result = handler.process(converted);
+                    metrics.processed(nanoTime() - convertedAt);
+                    handler.onSuccess(queueItem, converted, result);
+                    metrics.succeeded(1);
+                    return Pair.of(queueItem, result);
+                } catch (Throwable t) {
+                    t = deadlineError(deadline, t);
+                    metrics.failed(1);
+                    LOG.error("An error occurred while processing item {}", queueItem, t);
+                    handler.onError(queueItem, converted, t);
+                    throw new RuntimeException(t);
+                } finally {
+                    disarm(deadline);
+                    try {
+                        handler.onComplete(queueItem, converted, result);
+                    } finally {
+                        finished(queueItem);
+                    }
+                }
+            }
+        };
+        if (partitions == null) {
+            return executor.submit(call);
+        }
+        FutureTask<Pair<Q, R>> future = new FutureTask<Pair<Q, R>>(call);
+        partitions.execute(partitionKey.apply(queueItem), future);
+        return future;
+    }
+
+    protected Future<Pair<Q, R>> dispatchStagedItem(final Q queueItem) {
+        final SettableFuture<Pair<Q, R>> future = SettableFuture.create();
+        final long dispatchedAt = nanoTime();
+        convertStage.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (skipped(queueItem)) {
+                    future.set(null);
+                    return;
+                }
+                final T converted;
+                ItemDeadline deadline = null;
+                try {
+                    long start = nanoTime();
+                    metrics.started(start - dispatchedAt);
+                    deadline = startDeadline(queueItem);
+                    converted = handler.convert(queueItem);
+                    disarm(deadline);
+                    metrics.converted(nanoTime() - start);
+                } catch (Throwable t) {
+                    stagedCompleted(queueItem, null, null, deadlineError(deadline, t), future);
+                    return;
+                }
+                try {
+                    processStage.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            R result;
+                            ItemDeadline deadline = null;
+                            try {
+                                long start = nanoTime();
+                                deadline = startDeadline(queueItem);
+                                result = handler.process(converted);
+                                disarm(deadline);
+                                metrics.processed(nanoTime() - start);
+                            } catch (Throwable t) {
+                                stagedCompleted(queueItem, converted, null, deadlineError(deadline, t), future);
+                                return;
+                            }
+                            stagedCompleted(queueItem, converted, result, null, future);
+                        }
+                    });
+                } catch (Throwable t) {
+                    stagedCompleted(queueItem, converted, null, t, future);
+                }
+            }
+        });
+        return future;
+    }
+
+    protected void stagedCompleted(Q queueItem, T converted, R result, Throwable error,
+                                   SettableFuture<Pair<Q, R>> future) {
+        try {
+            if (error == null) {
+                try {
+                    handler.onSuccess(queueItem, converted, result);
+                } catch (Throwable t) {
+                    error = t;
+                }
+            }
+            if (error == null) {
+                metrics.succeeded(1);
+                future.set(Pair.of(queueItem, result));
+            } else {
+                metrics.failed(1);
+                LOG.error("An error occurred while processing item {}", queueItem, error);
+                try {
+                    handler.onError(queueItem, converted, error);
+                } finally {
+                    future.setException(error);
+                }
+            }
+        } finally {
+            try {
+                handler.onComplete(queueItem, converted, result);
+            } finally {
+                finished(queueItem);
+            }
+        }
+    }
+
+    /**
+     * Run a task for the given queue item on the executor, or on its lane if partitioned.
+     */
+    protected void execute(Q queueItem, Runnable task) {
+        if (partitions == null) {
+            executor.execute(task);
+        } else {
+            partitions.execute(partitionKey.apply(queueItem), task);
+        }
+    }
+
+    protected void executeItem(Q queueItem) {
+        ItemTask task = carriers.poll();
+        if (task == null) {
+            task = new ItemTask();
+        }
+        task.queueItem = queueItem;
+        task.dispatchedAt = nanoTime();
+        try {
+            execute(queueItem, task);
+        } catch (RejectedExecutionException e) {
+            task.recycle();
+            throw e;
+        }
+    }
+
+    protected void dispatchAsyncItems(Collection<Q> queueItems) {
+        int dispatched = 0;
+        try {
+            for (Q queueItem : queueItems) {
+                dispatchAsyncItem(queueItem);
+                ++dispatched;
+            }
+        } finally {
+            finishedUndispatched(queueItems, dispatched);
+        }
+    }
+
+    protected void dispatchAsyncItem(final Q queueItem) {
+        final long dispatchedAt = nanoTime();
+        execute(queueItem, new Runnable() {
+            @Override
+            public void run() {
+                if (skipped(queueItem)) {
+                    return;
+                }
+                T converted = null;
+                ListenableFuture<R> future;
+                final long processStart;
+                ItemDeadline deadline = null;
+                try {
+                    long start = nanoTime();
+                    metrics.started(start - dispatchedAt);
+                    deadline = startDeadline(queueItem);
+                    converted = asyncHandler.convert(queueItem);
+                    processStart = nanoTime();
+                    metrics.converted(processStart - start);
+                    future = asyncHandler.processAsync(converted);
+                    if (future == null) {
+                        throw new NullPointerException("processAsync returned null");
+                    }
+                    disarm(deadline);
+                } catch (Throwable t) {
+                    asyncCompleted(queueItem, converted, null, deadlineError(deadline, t));
+                    return;
+                }
+
+                final T finalConverted = converted;
+                final ItemDeadline futureDeadline = deadlineTimer == null ? null :
+                        ItemDeadline.forFuture(deadlineTimer, queueItem, deadlineNs, future);
+                Futures.addCallback(future, new FutureCallback<R>() {
+                    @Override
+                    public void onSuccess(R result) {
+                        disarm(futureDeadline);
+                        metrics.processed(nanoTime() - processStart);
+                        asyncCompleted(queueItem, finalConverted, result, null);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        t = deadlineError(futureDeadline, t);
+                        metrics.processed(nanoTime() - processStart);
+                        asyncCompleted(queueItem, finalConverted, null, t);
+                    }
+                });
+            }
+        });
+    }
+
+    protected void asyncCompleted(Q queueItem, T converted, R result, Throwable error) {
+        try {
+            if (error == null) {
+                try {
+                    asyncHandler.onSuccess(queueItem, converted, result);
+                    metrics.succeeded(1);
+                } catch (Throwable t) {
+                    // as on the synchronous path, a failing onSuccess fails the item
+                    error = t;
+                }
+            }
+            if (error != null) {
+                metrics.failed(1);
+                LOG.error("An error occurred while processing item {}", queueItem, error);
+                asyncHandler.onError(queueItem, converted, error);
+            }
+        } catch (Throwable t) {
+            LOG.error("An error occurred in a completion callback for item {}", queueItem, t);
+        } finally {
+            try {
+                asyncHandler.onComplete(queueItem, converted, result);
+            } finally {
+                finished(queueItem);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void dispatchBatches(Collection<Q> queueItems) {
+        List<Q> all = queueItems instanceof List ? (List<Q>) queueItems : new ArrayList<Q>(queueItems);
+        List<List<Q>> batches = all.size() > maxBatchSize ? Lists.partition(all, maxBatchSize) : Collections.singletonList(all);
+        int dispatched = 0;
+        try {
+            for (List<Q> batch : batches) {
+                dispatchBatch(batch);
+                dispatched += batch.size();
+            }
+        } finally {
+            finishedUndispatched(all, dispatched);
+        }
+    }
+
+    protected void dispatchBatch(final List<Q> batch) {
+        final long dispatchedAt = nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (skippedAll(batch)) {
+                    return;
+                }
+                List<T> converted = null;
+                ItemDeadline deadline = null;
+                try {
+                    long start = nanoTime();
+                    metrics.started(start - dispatchedAt);
+                    deadline = startDeadline(batch);
+                    converted = batchHandler.convertAll(batch);
+                    long convertedAt = nanoTime();
+                    metrics.converted(convertedAt - start);
+                    if (converted.size() != batch.size()) {
+                        throw new IllegalStateException("convertAll returned " + converted.size() +
+                                " items for a batch of " + batch.size());
+                    }
+                    BatchOutcome<R> outcome = new BatchOutcome<R>(batch.size());
+                    batchHandler.processAll(converted, outcome);
+                    metrics.processed(nanoTime() - convertedAt);
+                    batchHandler.onBatchSuccess(batch, converted, outcome);
+                    metrics.succeeded(outcome.getSuccessCount());
+                    metrics.failed(outcome.getErrorCount());
+                } catch (Throwable t) {
+                    t = deadlineError(deadline, t);
+                    metrics.failed(batch.size());
+                    LOG.error("An error occurred while processing a batch of {} items", batch.size(), t);
+                    batchHandler.onBatchError(batch, converted, t);
+                } finally {
+                    disarm(deadline);
+                    finishedAll(batch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reusable carrier for a single queue item on the lean dispatch path.
+     */
+    class ItemTask implements Runnable {
+
+        Q queueItem;
+        long dispatchedAt;
+
+        @Override
+        public void run() {
+            Q queueItem = this.queueItem;
+            long dispatchedAt = this.dispatchedAt;
+            recycle();
+            try {
+                run(queueItem, dispatchedAt);
+            } catch (Throwable t) {
+                // as on the standard dispatch path, where the Future swallows errors of the callbacks, and so that a
+                // caller-runs executor does not throw them back into dispatch
+                LOG.error("An error occurred in the callbacks of a {}",
+                        queueItem == null ? null : queueItem.getClass().getName(), t);
+            }
+        }
+
+        private void run(Q queueItem, long dispatchedAt) {
+            if (skipped(queueItem)) {
+                return;
+            }
+
+            T converted = null;
+            R result = null;
+            ItemDeadline deadline = null;
+            try {
+                long start = nanoTime();
+                metrics.started(start - dispatchedAt);
+                deadline = startDeadline(queueItem);
+                converted = handler.convert(queueItem);
+                long convertedAt = nanoTime();
+                metrics.converted(convertedAt - start);
+                result = handler.process(converted);
+                metrics.processed(nanoTime() - convertedAt);
+                handler.onSuccess(queueItem, converted, result);
+                metrics.succeeded(1);
+            } catch (Throwable t) {
+                t = deadlineError(deadline, t);
+                metrics.failed(1);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("An error occurred while processing item {}", queueItem, t);
+                } else {
+                    LOG.error("An error occurred while processing a {}",
+                            queueItem == null ? null : queueItem.getClass().getName(), t);
+                }
+                handler.onError(queueItem, converted, t);
+            } finally {
+                disarm(deadline);
+                try {
+                    handler.onComplete(queueItem, converted, result);
+                } finally {
+                    finished(queueItem);
+                }
+            }
+        }
+
+        void recycle() {
+            queueItem = null;
+            carriers.offer(this);
+        }
+    }
+
+    /**
+     * Created on first use of {@link #withDeadline(long, TimeUnit)}.
+     */
+    private static class SharedDeadlineTimer {
+        static final HashedWheelTimer INSTANCE = new HashedWheelTimer("qs-deadlines",
+                HashedWheelTimer.DEFAULT_TICK_MS, TimeUnit.MILLISECONDS, HashedWheelTimer.DEFAULT_WHEEL_SIZE);
+    }
 }
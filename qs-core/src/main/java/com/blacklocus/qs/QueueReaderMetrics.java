@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+/**
+ * Receives measurements from the hot paths of a {@link QueueReader}. Methods are called on the reading thread and on
+ * executor threads concurrently, once per queue item or batch, so implementations must be thread-safe and cheap.
+ * Durations are in nanoseconds.
+ *
+ * @see QueueReader#withMetrics(QueueReaderMetrics)
+ * @see QueueReaderStats
+ */
+public interface QueueReaderMetrics {
+
+    /**
+     * A read from the provider returned.
+     *
+     * @param items     number of queue items returned, possibly 0
+     * @param receiveNs time spent in the provider's next()
+     */
+    void received(int items, long receiveNs);
+
+    /**
+     * The reader finished idling after an empty read.
+     *
+     * @param idleNs time spent idling
+     */
+    void idled(long idleNs);
+
+    /**
+     * A queue item, or a batch for a {@link BatchQueueItemHandler}, started handling on an executor thread.
+     *
+     * @param queuedNs time between dispatch and start, spent waiting for an executor thread
+     */
+    void started(long queuedNs);
+
+    /**
+     * @param convertNs time spent converting a queue item, or a batch
+     */
+    void converted(long convertNs);
+
+    /**
+     * @param processNs time spent processing a converted queue item or batch, for an {@link AsyncQueueItemHandler}
+     *                  until its future completed
+     */
+    void processed(long processNs);
+
+    /**
+     * @param items number of queue items handled successfully
+     */
+    void succeeded(int items);
+
+    /**
+     * @param items number of queue items that failed at any step of handling
+     */
+    void failed(int items);
+}
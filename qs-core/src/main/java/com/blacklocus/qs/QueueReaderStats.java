@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+/**
+ * The default {@link QueueReaderMetrics}, counting into {@link StripedCounter}s and {@link LatencyHistogram}s so that
+ * recording is lock-free, and allocation-free once each recording thread has used its histogram stripes. Since those
+ * are allocated on first use, an instance costs memory in proportion to the threads recording into it rather than to
+ * the processors. One instance may be shared by several readers to aggregate them.
+ * {@link #snapshot()} reads it without pausing the readers.
+ */
+public class QueueReaderStats implements QueueReaderMetrics {
+
+    private final StripedCounter emptyReceives = new StripedCounter();
+    private final StripedCounter succeeded = new StripedCounter();
+    private final StripedCounter failed = new StripedCounter();
+    private final LatencyHistogram receiveNs = new LatencyHistogram();
+    private final LatencyHistogram receiveSize = new LatencyHistogram();
+    private final LatencyHistogram idleNs = new LatencyHistogram();
+    private final LatencyHistogram queuedNs = new LatencyHistogram();
+    private final LatencyHistogram convertNs = new LatencyHistogram();
+    private final LatencyHistogram processNs = new LatencyHistogram();
+
+    @Override
+    public void received(int items, long receiveNs) {
+        this.receiveNs.record(receiveNs);
+        if (items == 0) {
+            emptyReceives.increment();
+        } else {
+            receiveSize.record(items);
+        }
+    }
+
+    @Override
+    public void idled(long idleNs) {
+        this.idleNs.record(idleNs);
+    }
+
+    @Override
+    public void started(long queuedNs) {
+        this.queuedNs.record(queuedNs);
+    }
+
+    @Override
+    public void converted(long convertNs) {
+        this.convertNs.record(convertNs);
+    }
+
+    @Override
+    public void processed(long processNs) {
+        this.processNs.record(processNs);
+    }
+
+    @Override
+    public void succeeded(int items) {
+        succeeded.add(items);
+    }
+
+    @Override
+    public void failed(int items) {
+        failed.add(items);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(emptyReceives.sum(), succeeded.sum(), failed.sum(), receiveNs.snapshot(),
+                receiveSize.snapshot(), idleNs.snapshot(), queuedNs.snapshot(), convertNs.snapshot(),
+                processNs.snapshot());
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Counts and distributions as of a {@link #snapshot()}. Durations are in nanoseconds.
+     */
+    public static class Snapshot {
+
+        private final long emptyReceives;
+        private final long succeeded;
+        private final long failed;
+        private final LatencyHistogram.Snapshot receiveNs;
+        private final LatencyHistogram.Snapshot receiveSize;
+        private final LatencyHistogram.Snapshot idleNs;
+        private final LatencyHistogram.Snapshot queuedNs;
+        private final LatencyHistogram.Snapshot convertNs;
+        private final LatencyHistogram.Snapshot processNs;
+
+        Snapshot(long emptyReceives, long succeeded, long failed,
+                 LatencyHistogram.Snapshot receiveNs, LatencyHistogram.Snapshot receiveSize,
+                 LatencyHistogram.Snapshot idleNs, LatencyHistogram.Snapshot queuedNs,
+                 LatencyHistogram.Snapshot convertNs, LatencyHistogram.Snapshot processNs) {
+            this.emptyReceives = emptyReceives;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.receiveNs = receiveNs;
+            this.receiveSize = receiveSize;
+            this.idleNs = idleNs;
+            this.queuedNs = queuedNs;
+            this.convertNs = convertNs;
+            this.processNs = processNs;
+        }
+
+        /**
+         * @return a snapshot combining the counts of this and the other snapshot, e.g. of another reader
+         */
+        public Snapshot merge(Snapshot other) {
+            return new Snapshot(emptyReceives + other.emptyReceives, succeeded + other.succeeded,
+                    failed + other.failed, receiveNs.merge(other.receiveNs), receiveSize.merge(other.receiveSize),
+                    idleNs.merge(other.idleNs), queuedNs.merge(other.queuedNs), convertNs.merge(other.convertNs),
+                    processNs.merge(other.processNs));
+        }
+
+        /**
+         * @return number of reads from the provider, empty or not
+         */
+        public long getReceives() {
+            return receiveNs.getCount();
+        }
+
+        public long getEmptyReceives() {
+            return emptyReceives;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return time spent in each read from the provider
+         */
+        public LatencyHistogram.Snapshot getReceiveNs() {
+            return receiveNs;
+        }
+
+        /**
+         * @return number of queue items returned by each non-empty read
+         */
+        public LatencyHistogram.Snapshot getReceiveSize() {
+            return receiveSize;
+        }
+
+        public LatencyHistogram.Snapshot getIdleNs() {
+            return idleNs;
+        }
+
+        /**
+         * @return time each item or batch waited for an executor thread
+         */
+        public LatencyHistogram.Snapshot getQueuedNs() {
+            return queuedNs;
+        }
+
+        public LatencyHistogram.Snapshot getConvertNs() {
+            return convertNs;
+        }
+
+        public LatencyHistogram.Snapshot getProcessNs() {
+            return processNs;
+        }
+
+        @Override
+        public String toString() {
+            return "QueueReaderStats{succeeded=" + succeeded + ", failed=" + failed +
+                    ", receives=" + getReceives() + ", emptyReceives=" + emptyReceives +
+                    ", receiveNs=" + receiveNs + ", receiveSize=" + receiveSize + ", idleNs=" + idleNs +
+                    ", queuedNs=" + queuedNs + ", convertNs=" + convertNs + ", processNs=" + processNs + '}';
+        }
+    }
+}
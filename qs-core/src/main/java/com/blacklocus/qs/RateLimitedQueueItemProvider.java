@@ -0,0 +1,130 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters queue items out of the wrapped provider through a token bucket, so that throttling for a downstream rate
+ * budget happens on the reading thread rather than in handlers holding executor threads. Each item handed on costs
+ * one permit. Permits accrue at <code>permitsPerSecond</code> up to <code>burst</code> banked permits.
+ * <p/>
+ * {@link #next()} waits for at least one permit before doing anything else. When a batch from the wrapped provider
+ * holds more items than there are permits, the remainder is held and handed on by the following calls before the
+ * wrapped provider is read again. Items not yet read thus stay in their queue, where e.g. an SQS visibility timeout
+ * does not run, rather than on the heap.
+ *
+ * @param <Q> queue item type
+ */
+public class RateLimitedQueueItemProvider<Q> implements QueueItemProvider<Q> {
+
+    private final QueueItemProvider<Q> provider;
+    private final double permitsPerNs;
+    private final double burst;
+
+    private final Queue<Q> held = new ArrayDeque<Q>();
+    private double permits;
+    private long refilledAtNs;
+
+    /**
+     * @param provider         the provider to meter
+     * @param permitsPerSecond sustained items per second
+     * @param burst            the most permits that may be banked while reading slower than the rate, which is also
+     *                         the initial number of permits. At least 1.
+     */
+    public RateLimitedQueueItemProvider(QueueItemProvider<Q> provider, double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive, was " + permitsPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1, was " + burst);
+        }
+        this.provider = provider;
+        this.permitsPerNs = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.permits = burst;
+        this.refilledAtNs = System.nanoTime();
+    }
+
+    @Override
+    public Iterator<Collection<Q>> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !held.isEmpty() || provider.hasNext();
+    }
+
+    /**
+     * @return as many items as there are permits for, or an empty collection if interrupted while waiting for one
+     */
+    @Override
+    public Collection<Q> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            awaitPermit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+        if (held.isEmpty()) {
+            Collection<Q> received = provider.next();
+            if (received.size() <= permits) {
+                permits -= received.size();
+                return received;
+            }
+            held.addAll(received);
+        }
+        int take = (int) Math.min(held.size(), permits);
+        List<Q> metered = new ArrayList<Q>(take);
+        for (int i = 0; i < take; i++) {
+            metered.add(held.poll());
+        }
+        permits -= take;
+        return metered;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void awaitPermit() throws InterruptedException {
+        refill();
+        while (permits < 1) {
+            long waitNs = (long) Math.ceil((1 - permits) / permitsPerNs);
+            TimeUnit.NANOSECONDS.sleep(waitNs);
+            refill();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        permits = Math.min(burst, permits + (now - refilledAtNs) * permitsPerNs);
+        refilledAtNs = now;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded memory of recently seen ids, kept as 64-bit fingerprints in two pre-allocated open-addressing tables of
+ * primitive longs. New ids go into the current table. Every <code>ttl</code>, or as soon as the current table holds
+ * <code>capacity</code> ids, the previous table is cleared and the two swap roles. An id is thus remembered for at
+ * least <code>ttl</code> unless more than <code>capacity</code> ids arrive in the meantime, and for at most twice
+ * that. Memory use is fixed at construction: each table has the next power of two at or above twice the capacity of
+ * slots, 8 bytes each, so 32 to 64 bytes per unit of capacity in all. Adding an id allocates nothing.
+ * <p/>
+ * Distinct ids with equal fingerprints are taken for the same id. With a million ids remembered the chance of any
+ * such collision is around one in ten million.
+ * <p/>
+ * Not thread-safe.
+ */
+class RecentIds {
+
+    private static final long EMPTY = 0;
+
+    private final int capacity;
+    private final long ttlNs;
+    private final int mask;
+
+    private long[] current;
+    private long[] previous;
+    private int currentSize = 0;
+    private long rotatedAtNs;
+
+    /**
+     * @param capacity the most ids to remember per table
+     * @param ttl      how long an id is remembered at least, capacity permitting
+     * @param unit     unit of <code>ttl</code>
+     */
+    RecentIds(int capacity, long ttl, TimeUnit unit) {
+        if (capacity < 1 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("capacity must be within [1, 2^29], was " + capacity);
+        }
+        int size = 2;
+        while (size < capacity * 2) {
+            size <<= 1;
+        }
+        this.capacity = capacity;
+        this.ttlNs = unit.toNanos(ttl);
+        this.mask = size - 1;
+        this.current = new long[size];
+        this.previous = new long[size];
+        this.rotatedAtNs = System.nanoTime();
+    }
+
+    /**
+     * Remember the given id.
+     *
+     * @return false if the id was already remembered
+     */
+    boolean add(String id) {
+        long now = System.nanoTime();
+        if (now - rotatedAtNs >= ttlNs || currentSize >= capacity) {
+            rotate(now);
+        }
+        long fingerprint = fingerprint(id);
+        if (contains(previous, fingerprint)) {
+            // refresh, so that an id that keeps coming back is not forgotten
+            insert(fingerprint);
+            return false;
+        }
+        return insert(fingerprint);
+    }
+
+    /**
+     * @return whether the given id is remembered, without remembering it
+     */
+    boolean contains(String id) {
+        long now = System.nanoTime();
+        if (now - rotatedAtNs >= ttlNs) {
+            rotate(now);
+        }
+        long fingerprint = fingerprint(id);
+        return contains(current, fingerprint) || contains(previous, fingerprint);
+    }
+
+    private void rotate(long now) {
+        if (now - rotatedAtNs >= 2 * ttlNs) {
+            // both tables have outlived the ttl
+            Arrays.fill(current, EMPTY);
+        }
+        long[] cleared = previous;
+        Arrays.fill(cleared, EMPTY);
+        previous = current;
+        current = cleared;
+        currentSize = 0;
+        rotatedAtNs = now;
+    }
+
+    private boolean contains(long[] table, long fingerprint) {
+        for (int i = (int) fingerprint & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the fingerprint was already in the current table
+     */
+    private boolean insert(long fingerprint) {
+        int i = (int) fingerprint & mask;
+        for (; current[i] != EMPTY; i = (i + 1) & mask) {
+            if (current[i] == fingerprint) {
+                return false;
+            }
+        }
+        if (currentSize < capacity) {
+            current[i] = fingerprint;
+            ++currentSize;
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a over the chars of the id, finished with the MurmurHash3 mixer so that the low bits used for table
+     * indexes are well distributed. Never returns {@link #EMPTY}.
+     */
+    static long fingerprint(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1 : h;
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An alternative to {@link ExternalQueueItemProvider} with the same producer-facing methods, backed by a pre-allocated,
+ * lock-free ring buffer. Any number of threads may {@link #put(Object)}, while only one thread, the reader, may call
+ * {@link #next()}. Neither side parks or unparks the other on handoff. Instead each side waits for room or items
+ * according to the chosen {@link WaitStrategy}, trading CPU for handoff latency.
+ *
+ * @param <Q> queue item type
+ */
+public class RingBufferQueueItemProvider<Q> implements QueueItemProvider<Q>, Closeable {
+
+    /**
+     * How a producer waits for room in a full buffer, and the reader for items in an empty one.
+     */
+    public static enum WaitStrategy {
+
+        /**
+         * Retry immediately. Lowest latency, but burns a core while waiting.
+         */
+        BUSY_SPIN {
+            @Override
+            void backoff(int attempt) {
+                // spin
+            }
+        },
+
+        /**
+         * Yield the processor between retries.
+         */
+        YIELD {
+            @Override
+            void backoff(int attempt) {
+                Thread.yield();
+            }
+        },
+
+        /**
+         * Spin, then yield, then park for increasingly long periods up to {@link #MAX_PARK_NS}. Cheapest on CPU when
+         * handoffs are sparse.
+         */
+        PARK {
+            @Override
+            void backoff(int attempt) {
+                if (attempt < SPIN_ATTEMPTS) {
+                    // spin
+                } else if (attempt < SPIN_ATTEMPTS + YIELD_ATTEMPTS) {
+                    Thread.yield();
+                } else {
+                    int shift = Math.min(attempt - SPIN_ATTEMPTS - YIELD_ATTEMPTS, 20);
+                    LockSupport.parkNanos(Math.min(MIN_PARK_NS << shift, MAX_PARK_NS));
+                }
+            }
+        };
+
+        static final int SPIN_ATTEMPTS = 100;
+        static final int YIELD_ATTEMPTS = 100;
+        static final long MIN_PARK_NS = 1000;
+        public static final long MAX_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        /**
+         * @param attempt number of consecutive failed attempts so far, starting at 0
+         */
+        abstract void backoff(int attempt);
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Q> buffer;
+    /**
+     * Per-slot sequence numbers. A slot is free for the producer claiming position p when its sequence equals p, and
+     * holds an item for the reader at position p when its sequence equals p + 1.
+     */
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    private final Long pollTimeout;
+    private final TimeUnit pollTimeUnit;
+    private final int maxBatchSize;
+    private final WaitStrategy waitStrategy;
+
+    private volatile boolean alive = true;
+    private volatile IdleStrategy wakeOnPut;
+
+    /**
+     * @param capacity     number of slots, rounded up to a power of two
+     * @param pollTimeout  how long {@link #next()} waits for a first item, or null to not wait
+     * @param pollTimeUnit unit of <code>pollTimeout</code>
+     * @param maxBatchSize once a first item is available, {@link #next()} also takes whatever else is immediately
+     *                     available, up to this many items in total
+     * @param waitStrategy how both sides wait on a full or empty buffer
+     */
+    public RingBufferQueueItemProvider(int capacity, Long pollTimeout, TimeUnit pollTimeUnit, int maxBatchSize,
+                                       WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be within [1, 2^30], was " + capacity);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1, was " + maxBatchSize);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<Q>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.pollTimeout = pollTimeout;
+        this.pollTimeUnit = pollTimeUnit;
+        this.maxBatchSize = maxBatchSize;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public Iterator<Collection<Q>> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return alive;
+    }
+
+    /**
+     * Must only be called from a single thread.
+     */
+    @Override
+    public List<Q> next() {
+        Q q = poll();
+        if (q == null && pollTimeout != null) {
+            long deadline = System.nanoTime() + pollTimeUnit.toNanos(pollTimeout);
+            for (int attempt = 0; q == null && alive && System.nanoTime() - deadline < 0; attempt++) {
+                waitStrategy.backoff(attempt);
+                q = poll();
+            }
+        }
+        if (q == null) {
+            return Collections.emptyList();
+        } else if (maxBatchSize == 1) {
+            return Collections.singletonList(q);
+        }
+        List<Q> batch = new ArrayList<Q>(Math.min(maxBatchSize, 64));
+        batch.add(q);
+        while (batch.size() < maxBatchSize && (q = poll()) != null) {
+            batch.add(q);
+        }
+        return batch;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @see ExternalQueueItemProvider#wakeOnPut(IdleStrategy)
+     */
+    public RingBufferQueueItemProvider<Q> wakeOnPut(IdleStrategy idleStrategy) {
+        this.wakeOnPut = idleStrategy;
+        return this;
+    }
+
+    /**
+     * Put an item, waiting per the {@link WaitStrategy} while the buffer is full.
+     *
+     * @throws IllegalStateException if this provider has been closed
+     */
+    public void put(Q q) throws InterruptedException {
+        IdleStrategy wakeOnPut = this.wakeOnPut;
+        for (int attempt = 0; !offer(q); attempt++) {
+            if (!alive) {
+                throw new IllegalStateException("Provider closed");
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            // an idle reader is what keeps the buffer full
+            if (wakeOnPut != null) {
+                wakeOnPut.wake();
+            }
+            waitStrategy.backoff(attempt);
+        }
+        // only now that the item can be read, or the reader may spend the wake on an empty read
+        if (wakeOnPut != null) {
+            wakeOnPut.wake();
+        }
+    }
+
+    /**
+     * Put each of the given items in order, waiting as {@link #put(Object)} would.
+     */
+    public void putAll(Collection<? extends Q> qs) throws InterruptedException {
+        for (Q q : qs) {
+            put(q);
+        }
+    }
+
+    /**
+     * Put an item if there is room for it right now.
+     *
+     * @return false if the buffer was full
+     */
+    public boolean offer(Q q) {
+        if (q == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, q);
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private Q poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Q q = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, head + mask + 1);
+        ++head;
+        return q;
+    }
+
+    /**
+     * @return the number of slots in the ring buffer
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        alive = false;
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps each call of a {@link MessageProvider} with a try/catch such that it always returns without throwing. Caught
+ * errors are logged, though each distinct stack trace at most once per log interval.
+ * <p/>
+ * After a failed {@link #next()}, the following call first waits out a backoff that doubles with each consecutive
+ * failure, so that an outage of the underlying queue service neither floods it with requests nor spins the reading
+ * thread. This wait happens on the reading thread, lasts at most {@link #MAX_WAIT_MS} per call after which an empty
+ * batch is returned, and ends early if the thread is interrupted. Optionally, once enough consecutive failures occur,
+ * the circuit opens: the underlying provider is then left alone for a fixed period, after which a single probe call,
+ * even among threads sharing this provider, decides whether the circuit closes again or stays open for another period.
+ *
+ * @see MessageProviders#newSafeMessageProvider(MessageProvider)
+ */
+public class SafeMessageProvider implements BatchDeletingMessageProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SafeMessageProvider.class);
+
+    /**
+     * default wait in ms after the first of consecutive failures of next()
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 100;
+
+    /**
+     * default longest wait in ms between consecutive failures of next()
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30 * 1000;
+
+    /**
+     * default minimum interval in ms between logging the same stack trace
+     */
+    public static final long DEFAULT_LOG_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * longest wait in ms within a single call of next(), so that the reading thread regularly gets to check whether
+     * it should stop
+     */
+    public static final long MAX_WAIT_MS = 1000;
+
+    private static final long MAX_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS);
+
+    private final MessageProvider messageProvider;
+
+    private long initialBackoffNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_BACKOFF_MS);
+    private long maxBackoffNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BACKOFF_MS);
+    private int circuitThreshold = 0;
+    private long circuitOpenNs;
+    private ThrottledErrorLog errorLog = new ThrottledErrorLog(LOG, DEFAULT_LOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong nextAttemptNs;
+    private volatile boolean circuitOpen = false;
+
+    /**
+     * @param messageProvider the base {@link MessageProvider} to wrap
+     */
+    public SafeMessageProvider(MessageProvider messageProvider) {
+        this.messageProvider = messageProvider;
+        this.nextAttemptNs = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @param initialBackoffMs wait in ms after the first of consecutive failures of next(), 0 to not back off
+     * @param maxBackoffMs     the longest wait in ms between consecutive failures
+     * @return this instance for chaining
+     */
+    public SafeMessageProvider withBackoff(long initialBackoffMs, long maxBackoffMs) {
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Require 0 <= initialBackoffMs <= maxBackoffMs, was " +
+                    initialBackoffMs + ", " + maxBackoffMs);
+        }
+        this.initialBackoffNs = TimeUnit.MILLISECONDS.toNanos(initialBackoffMs);
+        this.maxBackoffNs = TimeUnit.MILLISECONDS.toNanos(maxBackoffMs);
+        return this;
+    }
+
+    /**
+     * Open the circuit after <code>failureThreshold</code> consecutive failures of next().
+     *
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openMs           how long in ms the circuit stays open before a probe, and after each failed probe
+     * @return this instance for chaining
+     */
+    public SafeMessageProvider withCircuitBreaker(int failureThreshold, long openMs) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1, was " + failureThreshold);
+        }
+        this.circuitThreshold = failureThreshold;
+        this.circuitOpenNs = TimeUnit.MILLISECONDS.toNanos(openMs);
+        return this;
+    }
+
+    /**
+     * @param logIntervalMs minimum interval in ms between logging the same stack trace, 0 to log every error
+     * @return this instance for chaining
+     */
+    public SafeMessageProvider withLogInterval(long logIntervalMs) {
+        this.errorLog = new ThrottledErrorLog(LOG, logIntervalMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * @return the number of failures of next() since it last succeeded
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return whether next() is currently leaving the underlying provider alone
+     */
+    public boolean isCircuitOpen() {
+        return circuitOpen;
+    }
+
+    @Override
+    public Iterator<Collection<Message>> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (circuitOpen) {
+            return true;
+        }
+        try {
+            return messageProvider.hasNext();
+        } catch (Throwable t) {
+            errorLog.error("An error occurred during hasNext()", t);
+            return true;
+        }
+    }
+
+    @Override
+    public Collection<Message> next() {
+        long attemptNs = nextAttemptNs.get();
+        long waitNs = attemptNs - System.nanoTime();
+        if (waitNs > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(waitNs, MAX_WAIT_NS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            }
+            if (waitNs > MAX_WAIT_NS) {
+                return Collections.emptyList();
+            }
+        }
+        // hold off other threads for another period so that only this one probes the open circuit
+        if (circuitOpen && !nextAttemptNs.compareAndSet(attemptNs, System.nanoTime() + circuitOpenNs)) {
+            return Collections.emptyList();
+        }
+        try {
+            Collection<Message> messages = messageProvider.next();
+            succeeded();
+            return messages;
+        } catch (Throwable t) {
+            errorLog.error("An error occurred during next()", t);
+            failed();
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void remove() {
+        try {
+            messageProvider.remove();
+        } catch (Throwable t) {
+            errorLog.error("An error occurred during remove()", t);
+        }
+    }
+
+    @Override
+    public void delete(Message message) {
+        try {
+            messageProvider.delete(message);
+        } catch (Throwable t) {
+            errorLog.error("An error occurred during delete()", t);
+        }
+    }
+
+    /**
+     * @return each message that could not be deleted with the reason why, all of them if the delete itself threw
+     */
+    @Override
+    public Map<Message, Exception> deleteBatch(Collection<Message> messages) {
+        try {
+            return MessageProviders.deleteBatch(messageProvider, messages);
+        } catch (Throwable t) {
+            errorLog.error("An error occurred during deleteBatch()", t);
+            Exception error = t instanceof Exception ? (Exception) t : new RuntimeException(t);
+            Map<Message, Exception> failures = new HashMap<Message, Exception>(messages.size() * 2);
+            for (Message message : messages) {
+                failures.put(message, error);
+            }
+            return failures;
+        }
+    }
+
+    private void succeeded() {
+        if (circuitOpen) {
+            LOG.info("Probe succeeded after {} consecutive failures, closing circuit", consecutiveFailures.get());
+            circuitOpen = false;
+        }
+        consecutiveFailures.set(0);
+    }
+
+    private void failed() {
+        int failures = consecutiveFailures.incrementAndGet();
+        long waitNs;
+        if (circuitThreshold > 0 && failures >= circuitThreshold) {
+            if (!circuitOpen) {
+                LOG.warn("{} consecutive failures, opening circuit for {}ms", failures,
+                        TimeUnit.NANOSECONDS.toMillis(circuitOpenNs));
+                circuitOpen = true;
+            }
+            waitNs = circuitOpenNs;
+        } else {
+            int shift = Math.min(failures - 1, 30);
+            waitNs = initialBackoffNs > maxBackoffNs >> shift ? maxBackoffNs : initialBackoffNs << shift;
+        }
+        nextAttemptNs.set(System.nanoTime() + waitNs);
+    }
+}
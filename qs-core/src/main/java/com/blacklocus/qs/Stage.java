@@ -0,0 +1,174 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a staged {@link QueueReader} pipeline: a fixed pool of threads fed by a bounded queue. Submitting to a
+ * full stage blocks the submitter, so a slow stage pushes back on the stage before it, and ultimately on the reader.
+ * Each stage tracks its queue depth and the time its threads spend running tasks.
+ *
+ * @see QueueReader#withStages(Stage, Stage)
+ */
+public class Stage implements Executor {
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong serviceNanos = new AtomicLong();
+    private final AtomicLong maxServiceNanos = new AtomicLong();
+
+    /**
+     * @param name          names this stage's threads
+     * @param threads       number of threads in this stage
+     * @param queueCapacity number of tasks that may wait for a thread before submitters block
+     */
+    public Stage(String name, int threads, int queueCapacity) {
+        this.name = name;
+        this.pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat("qs-stage-" + name + "-%d").build(),
+                new BlockingPolicy()
+        ) {
+            private final ThreadLocal<long[]> started = new ThreadLocal<long[]>() {
+                @Override
+                protected long[] initialValue() {
+                    return new long[1];
+                }
+            };
+
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                started.get()[0] = System.nanoTime();
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                long elapsed = System.nanoTime() - started.get()[0];
+                serviceNanos.addAndGet(elapsed);
+                completed.incrementAndGet();
+                long max;
+                while (elapsed > (max = maxServiceNanos.get()) && !maxServiceNanos.compareAndSet(max, elapsed)) {
+                    // retry
+                }
+            }
+        };
+    }
+
+    /**
+     * Queue a task, blocking while this stage's queue is full.
+     */
+    @Override
+    public void execute(Runnable command) {
+        pool.execute(command);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return number of threads currently running a task
+     */
+    public int getActive() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return number of tasks this stage has finished running
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return mean time in ms a task of this stage spent running, excluding time spent queued
+     */
+    public double getMeanServiceTimeMs() {
+        long n = completed.get();
+        return n == 0 ? 0 : serviceNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return the longest time in ms a task of this stage spent running
+     */
+    public double getMaxServiceTimeMs() {
+        return maxServiceNanos.get() / 1e6;
+    }
+
+    /**
+     * Stop accepting tasks. Queued tasks still run.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return "Stage{" + name + ", queued=" + getQueueDepth() + ", active=" + getActive() +
+                ", completed=" + getCompleted() + ", meanServiceMs=" + getMeanServiceTimeMs() + '}';
+    }
+
+    static class BlockingPolicy implements RejectedExecutionHandler {
+
+        /**
+         * How often a blocked submitter checks whether the stage was shut down meanwhile.
+         */
+        static final long SHUTDOWN_CHECK_MS = 100;
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Stage shut down");
+            }
+            try {
+                while (!executor.getQueue().offer(r, SHUTDOWN_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Stage shut down");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in stage", e);
+            }
+            // A shutdown that raced the offer may have left no worker to run the task, so take it back.
+            if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                throw new RejectedExecutionException("Stage shut down");
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, each on its own cache line, so that threads updating it concurrently rarely
+ * contend on the same memory. Updating never locks or allocates. {@link #sum()} reads the cells one by one, so it does
+ * not stop writers and may miss updates made while it runs.
+ */
+public class StripedCounter {
+
+    /**
+     * longs per cache line, so that adjacent cells do not share one
+     */
+    static final int PAD = 8;
+
+    /**
+     * default number of cells, the number of processors rounded up to a power of two, at most 64
+     */
+    public static final int DEFAULT_STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of cells, rounded up to a power of two
+     */
+    public StripedCounter(int stripes) {
+        int size = stripesFor(stripes);
+        this.cells = new AtomicLongArray(size * PAD);
+        this.mask = size - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        cells.getAndAdd(stripe(mask) * PAD, x);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the stripe of the current thread, in <code>[0, mask]</code>
+     */
+    static int stripe(int mask) {
+        long id = Thread.currentThread().getId();
+        // pool threads have consecutive ids, spread them over the stripes
+        id *= 0x9e3779b97f4a7c15L;
+        return (int) (id >>> 32) & mask;
+    }
+
+    static int stripesFor(int n) {
+        int size = 1;
+        while (size < n && size < 64) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(sum());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+/**
+ * Passes every measurement on to two {@link QueueReaderMetrics}.
+ */
+class TeeQueueReaderMetrics implements QueueReaderMetrics {
+
+    private final QueueReaderMetrics first;
+    private final QueueReaderMetrics second;
+
+    TeeQueueReaderMetrics(QueueReaderMetrics first, QueueReaderMetrics second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void received(int items, long receiveNs) {
+        first.received(items, receiveNs);
+        second.received(items, receiveNs);
+    }
+
+    @Override
+    public void idled(long idleNs) {
+        first.idled(idleNs);
+        second.idled(idleNs);
+    }
+
+    @Override
+    public void started(long queuedNs) {
+        first.started(queuedNs);
+        second.started(queuedNs);
+    }
+
+    @Override
+    public void converted(long convertNs) {
+        first.converted(convertNs);
+        second.converted(convertNs);
+    }
+
+    @Override
+    public void processed(long processNs) {
+        first.processed(processNs);
+        second.processed(processNs);
+    }
+
+    @Override
+    public void succeeded(int items) {
+        first.succeeded(items);
+        second.succeeded(items);
+    }
+
+    @Override
+    public void failed(int items) {
+        first.failed(items);
+        second.failed(items);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs errors with their stack trace, but each distinct stack trace at most once per interval. Repeats within the
+ * interval are only counted, and the count is reported with the next logged occurrence. Thread-safe.
+ */
+class ThrottledErrorLog {
+
+    /**
+     * number of distinct stack traces tracked, beyond which the least recently seen is forgotten
+     */
+    static final int MAX_TRACKED = 64;
+
+    private final Logger log;
+    private final long intervalNs;
+    private final Map<Signature, Occurrences> seen = new LinkedHashMap<Signature, Occurrences>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Signature, Occurrences> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    ThrottledErrorLog(Logger log, long interval, TimeUnit unit) {
+        this.log = log;
+        this.intervalNs = unit.toNanos(interval);
+    }
+
+    void error(String message, Throwable t) {
+        long now = System.nanoTime();
+        int suppressed;
+        synchronized (seen) {
+            Signature signature = new Signature(t);
+            Occurrences occurrences = seen.get(signature);
+            if (occurrences == null) {
+                seen.put(signature, new Occurrences(now));
+                suppressed = 0;
+            } else if (now - occurrences.loggedAtNs < intervalNs) {
+                ++occurrences.suppressed;
+                suppressed = -1;
+            } else {
+                suppressed = occurrences.suppressed;
+                occurrences.suppressed = 0;
+                occurrences.loggedAtNs = now;
+            }
+        }
+        if (suppressed < 0) {
+            log.debug("{} (repeat, stack trace suppressed): {}", message, t.toString());
+        } else if (suppressed == 0) {
+            log.error(message, t);
+        } else {
+            log.error(message + " (" + suppressed + " identical errors suppressed)", t);
+        }
+    }
+
+    static class Occurrences {
+        long loggedAtNs;
+        int suppressed = 0;
+
+        Occurrences(long loggedAtNs) {
+            this.loggedAtNs = loggedAtNs;
+        }
+    }
+
+    /**
+     * Identifies a stack trace by the class and frames of the throwable and each of its causes. Messages are left out
+     * since they often carry request ids or timestamps.
+     */
+    static class Signature {
+        final int hash;
+        final Throwable t;
+
+        Signature(Throwable t) {
+            this.t = t;
+            int h = 1;
+            for (Throwable c = t; c != null; c = c.getCause() == c ? null : c.getCause()) {
+                h = 31 * h + c.getClass().hashCode();
+                h = 31 * h + Arrays.hashCode(c.getStackTrace());
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Signature) || ((Signature) o).hash != hash) {
+                return false;
+            }
+            Throwable a = t, b = ((Signature) o).t;
+            while (a != null && b != null) {
+                if (a.getClass() != b.getClass() || !Arrays.equals(a.getStackTrace(), b.getStackTrace())) {
+                    return false;
+                }
+                a = a.getCause() == a ? null : a.getCause();
+                b = b.getCause() == b ? null : b.getCause();
+            }
+            return a == null && b == null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.misc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SupervisorTest {
+
+    @Test
+    public void backsOffBetweenFailuresAndGivesUp() {
+        final AtomicInteger runs = new AtomicInteger();
+        Supervisor supervisor = new Supervisor(new ExceptingRunnable() {
+            @Override
+            protected void go() throws Exception {
+                if (runs.incrementAndGet() == 2) {
+                    // a normal return resets the run of consecutive failures
+                    return;
+                }
+                throw new IllegalStateException("service down");
+            }
+        }).withBackoff(10, 40).withGiveUpPolicy(Supervisor.giveUpAfter(4));
+
+        long start = System.currentTimeMillis();
+        supervisor.run();
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.assertTrue(supervisor.isGivenUp());
+        Assert.assertEquals(6, runs.get());
+        Assert.assertEquals(5, supervisor.getRestarts());
+        Assert.assertEquals(5, supervisor.getFailures());
+        Assert.assertEquals(4, supervisor.getConsecutiveFailures());
+        Assert.assertTrue(supervisor.getLastFailure() instanceof IllegalStateException);
+        Assert.assertTrue(supervisor.getLastFailureTime() >= start);
+        // 10 after the first failure, then 10, 20, 40 for the next streak; the giving-up failure does not wait
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 10 + 10 + 20);
+        Assert.assertEquals(40, supervisor.backoffMs(10));
+        // saturates rather than overflowing the shift
+        Assert.assertEquals(Long.MAX_VALUE, supervisor.withBackoff(Long.MAX_VALUE / 4, Long.MAX_VALUE).backoffMs(4));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class AccumulatingQueueItemProviderTest {
+
+    @Test
+    public void batchesFillAcrossReadsAndCarryOverflow() throws InterruptedException {
+        ExternalQueueItemProvider<Integer> source = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), null, null, 3);
+        for (int i = 0; i < 12; i++) {
+            source.put(i);
+        }
+        AccumulatingQueueItemProvider<Integer> accumulator =
+                new AccumulatingQueueItemProvider<Integer>(source, 5, 1, TimeUnit.MINUTES);
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), accumulator.next());
+        Assert.assertEquals(Arrays.asList(5, 6, 7, 8, 9), accumulator.next());
+    }
+
+    @Test
+    public void partialBatchesFlushOnDelayAndShutdown() throws Exception {
+        ExternalQueueItemProvider<Integer> source = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), 1L, TimeUnit.MILLISECONDS, 10);
+        AccumulatingQueueItemProvider<Integer> accumulator =
+                new AccumulatingQueueItemProvider<Integer>(source, 100, 50, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(accumulator.next().isEmpty());
+
+        source.putAll(Arrays.asList(1, 2, 3));
+        long start = System.nanoTime();
+        Collection<Integer> batch = accumulator.next();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(Arrays.asList(1, 2, 3), batch);
+        Assert.assertTrue("flushed after " + elapsedMs + "ms", elapsedMs >= 40 && elapsedMs < 5000);
+
+        source.putAll(Arrays.asList(4, 5));
+        Assert.assertEquals(Arrays.asList(4, 5), accumulator.next());
+        final AccumulatingQueueItemProvider<Integer> patient =
+                new AccumulatingQueueItemProvider<Integer>(source, 100, 1, TimeUnit.MINUTES);
+        final List<Collection<Integer>> flushed = Collections.synchronizedList(new ArrayList<Collection<Integer>>());
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                flushed.add(patient.next());
+            }
+        };
+        source.put(6);
+        reader.start();
+        Thread.sleep(50);
+        reader.interrupt();
+        reader.join(5000);
+        Assert.assertEquals(Collections.singletonList(Arrays.asList(6)), flushed);
+
+        accumulator.close();
+        Assert.assertFalse(accumulator.hasNext());
+    }
+}
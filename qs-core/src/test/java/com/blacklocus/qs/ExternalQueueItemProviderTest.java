@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ExternalQueueItemProviderTest {
+
+    @Test
+    public void nextDrainsUpToMaxBatchSize() throws InterruptedException {
+        ExternalQueueItemProvider<Integer> provider = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), null, null, 5);
+        for (int i = 0; i < 12; i++) {
+            provider.put(i);
+        }
+
+        Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4), provider.next());
+        Assert.assertEquals(ImmutableList.of(5, 6, 7, 8, 9), provider.next());
+        Assert.assertEquals(ImmutableList.of(10, 11), provider.next());
+        Assert.assertTrue(provider.next().isEmpty());
+    }
+
+    @Test
+    public void putAllKeepsOrder() throws InterruptedException {
+        ExternalQueueItemProvider<Integer> provider = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), null, null, 7)
+                .wakeOnPut(IdleStrategies.fixed(0));
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            items.add(i);
+        }
+        provider.putAll(items);
+
+        List<Integer> read = new ArrayList<Integer>();
+        for (Collection<Integer> batch = provider.next(); !batch.isEmpty(); batch = provider.next()) {
+            read.addAll(batch);
+        }
+        Assert.assertEquals(items, read);
+    }
+
+    @Test
+    public void putWakesIdleReader() throws Exception {
+        final ExternalQueueItemProvider<Integer> provider = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), null, null, 1);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(1);
+        final IdleStrategy idleStrategy = new SignallingIdleStrategy(idle);
+        provider.wakeOnPut(idleStrategy);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Thread readerThread = startReader(provider, idleStrategy, handled, executor);
+
+        Assert.assertTrue(idle.await(5, TimeUnit.SECONDS));
+        provider.put(1);
+        Assert.assertTrue("the reader slept through the put", handled.await(5, TimeUnit.SECONDS));
+
+        stop(provider, idleStrategy, readerThread, executor);
+    }
+
+    @Test
+    public void putBetweenEmptyReadAndIdleIsNotMissed() throws Exception {
+        final CountDownLatch handled = new CountDownLatch(1);
+        final IdleStrategy idleStrategy = IdleStrategies.fixed(60000);
+        // the put lands on the reading thread after the empty read and before the reader idles
+        final ExternalQueueItemProvider<Integer> provider = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), null, null, 1) {
+            boolean first = true;
+
+            @Override
+            public List<Integer> next() {
+                List<Integer> batch = super.next();
+                if (first) {
+                    first = false;
+                    try {
+                        put(1);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                return batch;
+            }
+        };
+        provider.wakeOnPut(idleStrategy);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Thread readerThread = startReader(provider, idleStrategy, handled, executor);
+
+        Assert.assertTrue("the reader missed a wake", handled.await(5, TimeUnit.SECONDS));
+
+        stop(provider, idleStrategy, readerThread, executor);
+    }
+
+    private static Thread startReader(ExternalQueueItemProvider<Integer> provider, IdleStrategy idleStrategy,
+                                      final CountDownLatch handled, ExecutorService executor) {
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(provider,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) {
+                        handled.countDown();
+                        return item;
+                    }
+                }, executor, 0).withIdleStrategy(idleStrategy);
+        Thread readerThread = new Thread(reader);
+        readerThread.start();
+        return readerThread;
+    }
+
+    private static void stop(ExternalQueueItemProvider<Integer> provider, IdleStrategy idleStrategy,
+                             Thread readerThread, ExecutorService executor) throws Exception {
+        provider.close();
+        idleStrategy.wake();
+        readerThread.join(5000);
+        Assert.assertFalse(readerThread.isAlive());
+        executor.shutdown();
+    }
+
+    /**
+     * Waits a minute per idle, and counts down the latch each time it starts to.
+     */
+    static class SignallingIdleStrategy extends IdleStrategies.WakeableIdleStrategy {
+        private final CountDownLatch idle;
+
+        SignallingIdleStrategy(CountDownLatch idle) {
+            this.idle = idle;
+        }
+
+        @Override
+        public void idle() throws InterruptedException {
+            idle.countDown();
+            await(60000);
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+}
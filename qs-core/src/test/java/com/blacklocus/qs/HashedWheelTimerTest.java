@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void expiresInDeadlineOrderAndSkipsCancelled() throws InterruptedException {
+        // a small wheel, so that the last task needs several revolutions
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 4);
+        final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        try {
+            long start = System.nanoTime();
+            timer.newTimeout(record(fired, 3, null), 90, TimeUnit.MILLISECONDS);
+            timer.newTimeout(record(fired, 1, null), 10, TimeUnit.MILLISECONDS);
+            HashedWheelTimer.Timeout cancelled = timer.newTimeout(record(fired, 2, null), 40, TimeUnit.MILLISECONDS);
+            timer.newTimeout(record(fired, 4, done), 120, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cancelled.cancel());
+
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(120));
+            Assert.assertEquals(Arrays.asList(1, 3, 4), fired);
+            Assert.assertFalse(cancelled.isExpired());
+            Assert.assertFalse(cancelled.cancel());
+        } finally {
+            timer.close();
+        }
+    }
+
+    private static Runnable record(final List<Integer> fired, final int id, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(id);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+}
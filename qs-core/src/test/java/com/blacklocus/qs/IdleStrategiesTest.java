@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class IdleStrategiesTest {
+
+    @Test
+    public void exponentialBackoffDoublesUpToTheCapAndResets() throws InterruptedException {
+        IdleStrategies.ExponentialBackoffIdleStrategy backoff =
+                (IdleStrategies.ExponentialBackoffIdleStrategy) IdleStrategies.exponentialBackoff(20, 80, 0);
+
+        long start = System.nanoTime();
+        backoff.idle();
+        long firstMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("first idle " + firstMs + "ms", firstMs >= 19);
+
+        // waking ahead of each idle skips the wait, leaving only the growth to observe
+        Assert.assertEquals(40, backoff.getNextMs());
+        backoff.wake();
+        backoff.idle();
+        Assert.assertEquals(80, backoff.getNextMs());
+        backoff.wake();
+        backoff.idle();
+        Assert.assertEquals(80, backoff.getNextMs());
+
+        backoff.reset();
+        Assert.assertEquals(20, backoff.getNextMs());
+    }
+
+    @Test
+    public void wakeCutsIdleShort() throws InterruptedException {
+        final IdleStrategy idle = IdleStrategies.fixed(60000);
+        Thread waker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                idle.wake();
+            }
+        };
+        waker.start();
+        long start = System.nanoTime();
+        idle.idle();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("woke after " + elapsedMs + "ms", elapsedMs < 5000);
+        waker.join();
+    }
+
+    @Test
+    public void wakeWhileNotIdleEndsOnlyTheNextIdle() throws InterruptedException {
+        IdleStrategy idle = IdleStrategies.fixed(50);
+        idle.wake();
+
+        long start = System.nanoTime();
+        idle.idle();
+        long stickyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("sticky wake took " + stickyMs + "ms", stickyMs < 40);
+
+        start = System.nanoTime();
+        idle.idle();
+        long fullMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("second idle took " + fullMs + "ms", fullMs >= 45);
+    }
+}
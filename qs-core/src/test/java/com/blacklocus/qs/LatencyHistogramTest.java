@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheRangeWithinThreePercent() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            int index = LatencyHistogram.indexOf(value);
+            Assert.assertTrue(LatencyHistogram.lowerBoundOf(index) <= value);
+            Assert.assertTrue(index + 1 == LatencyHistogram.BUCKETS || LatencyHistogram.lowerBoundOf(index + 1) > value);
+            long reported = LatencyHistogram.valueOf(index);
+            Assert.assertTrue(value + " reported as " + reported, Math.abs(reported - value) <= value * 0.035);
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesOfSnapshots() {
+        LatencyHistogram histogram = new LatencyHistogram(2);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(50500, snapshot.getMean(), 0.001);
+        Assert.assertEquals(50000, snapshot.getPercentile(50), 50000 * 0.035);
+        Assert.assertEquals(99000, snapshot.getPercentile(99), 99000 * 0.035);
+        Assert.assertEquals(100000, snapshot.getMax(), 100000 * 0.035);
+
+        LatencyHistogram other = new LatencyHistogram(1);
+        other.record(7);
+        LatencyHistogram.Snapshot merged = snapshot.merge(other.snapshot());
+        Assert.assertEquals(101, merged.getCount());
+        Assert.assertEquals(7, merged.getPercentile(0));
+    }
+
+    @Test
+    public void stripesAreAllocatedByTheThreadsRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram(64);
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        histogram.record(i);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(8000, histogram.snapshot().getCount());
+        Assert.assertEquals(8 * 499500, histogram.snapshot().getSum());
+    }
+}
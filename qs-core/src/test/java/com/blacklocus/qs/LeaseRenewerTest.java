@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.blacklocus.qs.MessageProvidersTest.msg;
+
+public class LeaseRenewerTest {
+
+    @Test
+    public void renewsLeasesOfInFlightMessagesUntilFinished() throws Exception {
+        final RenewingMessageProvider provider = new RenewingMessageProvider(
+                ImmutableList.of(msg("slow", "700"), msg("fast", "0")));
+        LeaseRenewer renewer = new LeaseRenewer(provider, 400, TimeUnit.MILLISECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            new MessageQueueReader<Long, Long>(provider, new AbstractMessageHandler<Long, Long>() {
+                @Override
+                public Long convert(Message message) {
+                    return Long.valueOf(message.getBody());
+                }
+
+                @Override
+                public Long process(Long sleepMs) throws InterruptedException {
+                    Thread.sleep(sleepMs);
+                    return sleepMs;
+                }
+            }, executor, 0).withLeaseRenewer(renewer).runToCompletion();
+
+            Assert.assertEquals(0, renewer.getTracked());
+            List<String> renewed = provider.getRenewed();
+            Assert.assertTrue(renewed.toString(), Collections.frequency(renewed, "slow") >= 2);
+            Assert.assertFalse(renewed.contains("fast"));
+
+            // nothing in flight, nothing left to renew
+            int renewals = renewed.size();
+            Thread.sleep(300);
+            Assert.assertEquals(renewals, provider.getRenewed().size());
+        } finally {
+            renewer.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void onlyGoneMessagesStopBeingTracked() throws InterruptedException {
+        final Message gone = msg("gone", null);
+        final Message expired = msg("expired", null);
+        Message held = msg("held", null);
+        RenewingMessageProvider provider = new RenewingMessageProvider(Collections.<Message>emptyList()) {
+            @Override
+            public synchronized Map<Message, Exception> renewLeases(Collection<Message> messages, long lease,
+                                                                    TimeUnit unit) {
+                super.renewLeases(messages, lease, unit);
+                Map<Message, Exception> failures = new HashMap<Message, Exception>();
+                failures.put(gone, new MessageGoneException("deleted by its handler"));
+                failures.put(expired, new RuntimeException("lease ran out"));
+                return failures;
+            }
+        };
+        LeaseRenewer renewer = new LeaseRenewer(provider, 400, TimeUnit.MILLISECONDS);
+        try {
+            renewer.track(ImmutableList.of(gone, expired, held));
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((renewer.getTracked() > 2 || Collections.frequency(provider.getRenewed(), "expired") < 2)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // the gone message is untracked while the failed renewal is retried at the next check
+            Assert.assertEquals(2, renewer.getTracked());
+            Assert.assertTrue(Collections.frequency(provider.getRenewed(), "expired") >= 2);
+            Assert.assertEquals(1, Collections.frequency(provider.getRenewed(), "gone"));
+        } finally {
+            renewer.close();
+        }
+    }
+
+    static class RenewingMessageProvider extends MessageProvidersTest.ListMessageProvider
+            implements LeaseRenewingMessageProvider {
+
+        private final List<String> renewed = new ArrayList<String>();
+
+        RenewingMessageProvider(Collection<Message> batch) {
+            super(ImmutableList.of(batch));
+        }
+
+        @Override
+        public synchronized boolean hasNext() {
+            return !batches.isEmpty();
+        }
+
+        @Override
+        public synchronized Map<Message, Exception> renewLeases(Collection<Message> messages, long lease,
+                                                                TimeUnit unit) {
+            Assert.assertEquals(400, unit.toMillis(lease));
+            for (Message message : messages) {
+                renewed.add(message.getId());
+            }
+            return new HashMap<Message, Exception>();
+        }
+
+        synchronized List<String> getRenewed() {
+            return new ArrayList<String>(renewed);
+        }
+    }
+}
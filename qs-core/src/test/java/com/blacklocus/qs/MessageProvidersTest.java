@@ -0,0 +1,394 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageProvidersTest {
+
+    @Test
+    public void coalescingKeepsNewestPerKeyAndDeletesTheRest() {
+        ListMessageProvider source = new ListMessageProvider(ImmutableList.<Collection<Message>>of(
+                Arrays.asList(msg("1", "a"), msg("2", "b"), msg("3", "a")),
+                Arrays.asList(msg("4", "c"), msg("5", "a"), msg("6", null), msg("7", null))));
+
+        MessageProvider coalescing = MessageProviders.coalescing(source, new Function<Message, String>() {
+            @Override
+            public String apply(Message input) {
+                return input.getBody();
+            }
+        }, 1000, 7);
+
+        Assert.assertEquals(Arrays.asList("2", "4", "5", "6", "7"), ids(coalescing.next()));
+        Assert.assertEquals(Arrays.asList("1", "3"), ids(source.deleted));
+    }
+
+    @Test
+    public void mergedSharesByWeightAndRoutesDeletes() {
+        ListMessageProvider busy = new ListMessageProvider();
+        ListMessageProvider quiet = new ListMessageProvider();
+        ListMessageProvider empty = new ListMessageProvider();
+        for (int i = 0; i < 100; i++) {
+            busy.batches.add(Arrays.asList(msg("busy-" + i, null), msg("busy-" + i + "b", null)));
+            quiet.batches.add(Arrays.asList(msg("quiet-" + i, null)));
+        }
+        Map<MessageProvider, Integer> weights = new LinkedHashMap<MessageProvider, Integer>();
+        weights.put(busy, 4);
+        weights.put(quiet, 1);
+        weights.put(empty, 5);
+        MessageProvider merged = new MergedMessageProvider(weights, 60000, 60000);
+
+        int fromBusy = 0, fromQuiet = 0;
+        for (int i = 0; i < 60; i++) {
+            for (Message message : merged.next()) {
+                if (message.getId().startsWith("busy")) {
+                    ++fromBusy;
+                } else {
+                    ++fromQuiet;
+                }
+                merged.delete(message);
+            }
+        }
+        Assert.assertEquals(4.0, (double) fromBusy / fromQuiet, 0.5);
+        Assert.assertEquals(fromBusy, busy.deleted.size());
+        Assert.assertEquals(fromQuiet, quiet.deleted.size());
+        Assert.assertEquals("quiet-0", quiet.deleted.get(0).getId());
+    }
+
+    @Test
+    public void rateLimitedSplitsBatchesAndHoldsTheRemainder() {
+        ListMessageProvider source = new ListMessageProvider(ImmutableList.<Collection<Message>>of(
+                Arrays.asList(msg("1", null), msg("2", null), msg("3", null), msg("4", null), msg("5", null)),
+                Arrays.asList(msg("6", null))));
+        MessageProvider limited = MessageProviders.rateLimited(source, 20, 2);
+
+        long start = System.nanoTime();
+        Assert.assertEquals(Arrays.asList("1", "2"), ids(limited.next()));
+        Assert.assertEquals(1, source.batches.size());
+        List<String> rest = new ArrayList<String>();
+        while (rest.size() < 4) {
+            rest.addAll(ids(limited.next()));
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(Arrays.asList("3", "4", "5", "6"), rest);
+        // 4 items beyond the burst at 20 per second
+        Assert.assertTrue("took " + elapsedMs + "ms", elapsedMs >= 180 && elapsedMs < 5000);
+    }
+
+    @Test
+    public void deduplicatingDropsAndDeletesRepeatsOfHandledMessagesWithinTtl() throws InterruptedException {
+        ListMessageProvider source = new ListMessageProvider(ImmutableList.<Collection<Message>>of(
+                Arrays.asList(msg("a", null), msg("b", null), msg("a", null)),
+                Arrays.asList(msg("b", null), msg("c", null))));
+        MessageProvider deduplicating = MessageProviders.deduplicating(source, 100, 50);
+
+        // the repeat within the batch is dropped but left in the queue
+        List<Message> first = new ArrayList<Message>(deduplicating.next());
+        Assert.assertEquals(Arrays.asList("a", "b"), ids(first));
+        Assert.assertTrue(source.deleted.isEmpty());
+        for (Message message : first) {
+            deduplicating.delete(message);
+        }
+
+        Assert.assertEquals(Arrays.asList("c"), ids(deduplicating.next()));
+        Assert.assertEquals(Arrays.asList("a", "b", "b"), ids(source.deleted));
+
+        // remembered for at most twice the ttl
+        Thread.sleep(120);
+        source.batches.add(Arrays.asList(msg("a", null)));
+        Assert.assertEquals(Arrays.asList("a"), ids(deduplicating.next()));
+    }
+
+    @Test
+    public void deduplicatingRedeliversMessagesThatWereNotHandled() {
+        ListMessageProvider source = new ListMessageProvider(ImmutableList.<Collection<Message>>of(
+                Arrays.asList(msg("a", null), msg("b", null)),
+                Arrays.asList(msg("a", null), msg("b", null))));
+        MessageProvider deduplicating = MessageProviders.deduplicating(source, 100, 60000);
+
+        List<Message> first = new ArrayList<Message>(deduplicating.next());
+        // "a" is handled and deleted, handling "b" fails so it is never deleted
+        deduplicating.delete(first.get(0));
+
+        Assert.assertEquals(Arrays.asList("b"), ids(deduplicating.next()));
+        Assert.assertEquals(Arrays.asList("a", "a"), ids(source.deleted));
+    }
+
+    @Test
+    public void batchingDeletesGroupsAndReportsFailures() throws Exception {
+        final List<Integer> groupSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final Map<String, Exception> failed = new ConcurrentHashMap<String, Exception>();
+        BatchDeletingMessageProvider source = groupRecordingProvider(groupSizes);
+
+        BatchingDeleteMessageProvider batching = MessageProviders.batchingDeletes(source, 10, 60000,
+                new MessageProviders.DeleteFailureCallback() {
+                    @Override
+                    public void failed(Message message, Exception error) {
+                        failed.put(message.getId(), error);
+                    }
+                });
+        for (int i = 0; i < 25; i++) {
+            batching.delete(msg(String.valueOf(i), null));
+        }
+        batching.close();
+
+        Assert.assertEquals(Arrays.asList(10, 10, 5), groupSizes);
+        Assert.assertEquals(Collections.singleton("13"), failed.keySet());
+        Assert.assertEquals(0, batching.getPending());
+    }
+
+    @Test
+    public void batchingDeletesPassThroughDecorators() throws Exception {
+        List<Integer> groupSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        MessageProvider decorated = MessageProviders.newSafeMessageProvider(
+                MessageProviders.deduplicating(groupRecordingProvider(groupSizes), 100, 60000));
+
+        BatchingDeleteMessageProvider batching = MessageProviders.batchingDeletes(decorated, 10, 60000);
+        for (int i = 0; i < 12; i++) {
+            batching.delete(msg(String.valueOf(i), null));
+        }
+        batching.close();
+
+        Assert.assertEquals(Arrays.asList(10, 2), groupSizes);
+    }
+
+    @Test
+    public void batchingDeletesAcceptedBeforeCloseAreNeverDropped() throws Exception {
+        final Set<String> deletedIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ListMessageProvider source = new ListMessageProvider() {
+            @Override
+            public void delete(Message message) {
+                deletedIds.add(message.getId());
+            }
+        };
+        final BatchingDeleteMessageProvider batching = MessageProviders.batchingDeletes(source, 10, 1);
+        final Set<String> accepted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch started = new CountDownLatch(4);
+        List<Thread> deleters = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t * 100000;
+            Thread deleter = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int i = offset; ; i++) {
+                        try {
+                            batching.delete(msg(String.valueOf(i), null));
+                        } catch (IllegalStateException e) {
+                            return;
+                        }
+                        accepted.add(String.valueOf(i));
+                    }
+                }
+            };
+            deleter.start();
+            deleters.add(deleter);
+        }
+        started.await();
+        Thread.sleep(20);
+        batching.close();
+        for (Thread deleter : deleters) {
+            deleter.join();
+        }
+
+        Assert.assertFalse(accepted.isEmpty());
+        Assert.assertTrue(deletedIds.containsAll(accepted));
+        Assert.assertEquals(0, batching.getPending());
+    }
+
+    @Test
+    public void safeProviderBacksOffAndBreaksCircuit() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicBoolean healthy = new AtomicBoolean(false);
+        ListMessageProvider flaky = new ListMessageProvider() {
+            @Override
+            public synchronized Collection<Message> next() {
+                calls.incrementAndGet();
+                if (!healthy.get()) {
+                    throw new RuntimeException("service unavailable");
+                }
+                return Arrays.asList(msg("1", null));
+            }
+        };
+        SafeMessageProvider safe = new SafeMessageProvider(flaky).withBackoff(10, 1000).withCircuitBreaker(3, 100);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(safe.next().isEmpty());
+        }
+        // waited 10 + 20ms between the three attempts
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 30);
+        Assert.assertTrue(safe.isCircuitOpen());
+
+        // an interrupted reading thread is not held up by the open circuit, nor is the provider called
+        healthy.set(true);
+        Thread.currentThread().interrupt();
+        start = System.nanoTime();
+        Assert.assertTrue(safe.next().isEmpty());
+        Assert.assertTrue(Thread.interrupted());
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+        Assert.assertEquals(3, calls.get());
+
+        // otherwise it waits out the open circuit, then probes
+        start = System.nanoTime();
+        Assert.assertEquals(Arrays.asList("1"), ids(safe.next()));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        Assert.assertFalse(safe.isCircuitOpen());
+        Assert.assertEquals(0, safe.getConsecutiveFailures());
+        Assert.assertEquals(4, calls.get());
+    }
+
+    static BatchDeletingMessageProvider groupRecordingProvider(final List<Integer> groupSizes) {
+        return new BatchDeletingMessageProvider() {
+            @Override
+            public Map<Message, Exception> deleteBatch(Collection<Message> messages) {
+                groupSizes.add(messages.size());
+                Map<Message, Exception> failures = new HashMap<Message, Exception>();
+                for (Message message : messages) {
+                    if (message.getId().equals("13")) {
+                        failures.put(message, new RuntimeException("receipt expired"));
+                    }
+                }
+                return failures;
+            }
+
+            @Override
+            public void delete(Message message) {
+                throw new AssertionError("expected batched deletes only");
+            }
+
+            @Override
+            public Iterator<Collection<Message>> iterator() {
+                return this;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Collection<Message> next() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    static List<String> ids(Collection<Message> messages) {
+        List<String> ids = new ArrayList<String>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    static Message msg(final String id, final String body) {
+        return new Message() {
+            @Override
+            public String getId() {
+                return id;
+            }
+
+            @Override
+            public String getReceipt() {
+                return "receipt-" + id;
+            }
+
+            @Override
+            public String getBody() {
+                return body;
+            }
+
+            @Override
+            public Map<String, String> getAttributes() {
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public String toString() {
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Returns the given batches in order, then empty batches forever, and records deletes.
+     */
+    static class ListMessageProvider implements MessageProvider {
+
+        final Queue<Collection<Message>> batches = new LinkedList<Collection<Message>>();
+        final List<Message> deleted = Collections.synchronizedList(new ArrayList<Message>());
+
+        ListMessageProvider() {
+        }
+
+        ListMessageProvider(List<Collection<Message>> batches) {
+            this.batches.addAll(batches);
+        }
+
+        @Override
+        public Iterator<Collection<Message>> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public synchronized Collection<Message> next() {
+            Collection<Message> batch = batches.poll();
+            return batch == null ? Collections.<Message>emptyList() : batch;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void delete(Message message) {
+            deleted.add(message);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelQueueReaderTest {
+
+    @Test
+    public void sharedWindowBoundsConcurrencyAcrossReaders() throws InterruptedException {
+        List<Collection<Integer>> batches = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < 40; i++) {
+            batches.add(ImmutableList.of(2 * i, 2 * i + 1));
+        }
+        final Iterator<Collection<Integer>> source = batches.iterator();
+        Iterable<Collection<Integer>> provider = new Iterable<Collection<Integer>>() {
+            @Override
+            public Iterator<Collection<Integer>> iterator() {
+                return new Iterator<Collection<Integer>>() {
+                    @Override
+                    public boolean hasNext() {
+                        synchronized (source) {
+                            return source.hasNext();
+                        }
+                    }
+
+                    @Override
+                    public Collection<Integer> next() {
+                        synchronized (source) {
+                            return source.hasNext() ? source.next() : Collections.<Integer>emptyList();
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Set<Integer> handled = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        ParallelQueueReader<Integer, Integer, Integer> reader = new ParallelQueueReader<Integer, Integer, Integer>(
+                provider, 4, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer item) throws InterruptedException {
+                int now = running.incrementAndGet();
+                int max;
+                while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {
+                    // retry
+                }
+                Thread.sleep(5);
+                running.decrementAndGet();
+                handled.add(item);
+                return item;
+            }
+        }, executor, 0).withMaxInFlight(6, 2);
+        reader.run();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 6);
+        Assert.assertEquals(80, handled.size());
+        Assert.assertEquals(0, reader.getInFlight());
+        Assert.assertEquals(0, reader.getActiveReaders());
+    }
+
+    @Test
+    public void supplierGivesEachReaderItsOwnProvider() throws InterruptedException {
+        final List<ThreadRecordingProvider> providers =
+                Collections.synchronizedList(new ArrayList<ThreadRecordingProvider>());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        new ParallelQueueReader<Integer, Integer, Integer>(new Supplier<Iterable<Collection<Integer>>>() {
+            @Override
+            public Iterable<Collection<Integer>> get() {
+                ThreadRecordingProvider provider = new ThreadRecordingProvider(5);
+                providers.add(provider);
+                return provider;
+            }
+        }, 3, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer item) {
+                return item;
+            }
+        }, executor, 0).run();
+        executor.shutdown();
+
+        Assert.assertEquals(3, providers.size());
+        Set<Thread> readerThreads = new HashSet<Thread>();
+        for (ThreadRecordingProvider provider : providers) {
+            Assert.assertEquals(0, provider.remaining);
+            Assert.assertEquals(1, provider.threads.size());
+            readerThreads.addAll(provider.threads);
+        }
+        Assert.assertEquals(3, readerThreads.size());
+    }
+
+    @Test
+    public void interruptStopsEveryReaderBeforeRunReturns() throws InterruptedException {
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        Iterable<Collection<Integer>> endless = new ThreadRecordingProvider(Integer.MAX_VALUE) {
+            @Override
+            public Collection<Integer> next() {
+                // a slow read that ignores interrupts, as a network call may
+                long until = System.currentTimeMillis() + 50;
+                while (System.currentTimeMillis() < until) {
+                    Thread.yield();
+                }
+                return Collections.emptyList();
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ParallelQueueReader<Integer, Integer, Integer> reader = new ParallelQueueReader<Integer, Integer, Integer>(
+                endless, 3, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer item) {
+                return item;
+            }
+        }, executor, 1);
+        final AtomicInteger activeOnReturn = new AtomicInteger(-1);
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                reader.run();
+                activeOnReturn.set(reader.getActiveReaders());
+                stopped.set(Thread.currentThread().isInterrupted());
+            }
+        };
+        runner.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reader.getActiveReaders() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(3, reader.getActiveReaders());
+
+        runner.interrupt();
+        runner.join(5000);
+        executor.shutdown();
+
+        Assert.assertFalse(runner.isAlive());
+        Assert.assertEquals(0, activeOnReturn.get());
+        Assert.assertTrue("interrupt restored", stopped.get());
+    }
+
+    static class ThreadRecordingProvider implements Iterable<Collection<Integer>>, Iterator<Collection<Integer>> {
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        int remaining;
+
+        ThreadRecordingProvider(int batches) {
+            this.remaining = batches;
+        }
+
+        @Override
+        public Iterator<Collection<Integer>> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            threads.add(Thread.currentThread());
+            return remaining > 0;
+        }
+
+        @Override
+        public Collection<Integer> next() {
+            threads.add(Thread.currentThread());
+            return ImmutableList.of(remaining--);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PrefetchingQueueItemProviderTest {
+
+    @Test
+    public void batchesArriveInOrder() {
+        List<Collection<Integer>> batches = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            batches.add(Arrays.asList(2 * i, 2 * i + 1));
+        }
+        PrefetchingQueueItemProvider<Integer> prefetcher =
+                new PrefetchingQueueItemProvider<Integer>(new IteratingProvider(batches.iterator()), 3);
+
+        List<Collection<Integer>> read = new ArrayList<Collection<Integer>>();
+        for (Collection<Integer> batch : prefetcher) {
+            read.add(batch);
+        }
+        Assert.assertEquals(batches, read);
+        Assert.assertFalse(prefetcher.hasNext());
+    }
+
+    @Test
+    public void failuresAreRethrownInOrder() {
+        final RuntimeException exception = new IllegalStateException("next");
+        final Error error = new AssertionError("hasNext");
+        PrefetchingQueueItemProvider<Integer> prefetcher = new PrefetchingQueueItemProvider<Integer>(
+                new IteratingProvider(null) {
+                    int calls = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (calls == 3) {
+                            throw error;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Collection<Integer> next() {
+                        switch (calls++) {
+                            case 0:
+                                return Arrays.asList(1);
+                            case 1:
+                                throw exception;
+                            default:
+                                return Arrays.asList(3);
+                        }
+                    }
+                }, 2);
+
+        Assert.assertEquals(Arrays.asList(1), prefetcher.next());
+        try {
+            prefetcher.next();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertSame(exception, e);
+        }
+        Assert.assertEquals(Arrays.asList(3), prefetcher.next());
+        try {
+            prefetcher.next();
+            Assert.fail();
+        } catch (AssertionError e) {
+            Assert.assertSame(error, e);
+        }
+        // An Error still ends the stream rather than leaving hasNext() blocked.
+        Assert.assertFalse(prefetcher.hasNext());
+    }
+
+    @Test
+    public void emptyBatchesAreNotBuffered() throws Exception {
+        List<Collection<Integer>> batches = new ArrayList<Collection<Integer>>();
+        batches.add(Collections.<Integer>emptyList());
+        batches.add(Collections.<Integer>emptyList());
+        batches.add(Arrays.asList(7));
+        PrefetchingQueueItemProvider<Integer> prefetcher = new PrefetchingQueueItemProvider<Integer>(
+                new IteratingProvider(batches.iterator()), 1).withIdleStrategy(IdleStrategies.fixed(0));
+
+        Assert.assertEquals(Arrays.asList(7), prefetcher.next());
+        Assert.assertFalse(prefetcher.hasNext());
+    }
+
+    @Test
+    public void hasNextReturnsAnEmptyBatchAfterWaitingAWhile() throws Exception {
+        final CountDownLatch fetched = new CountDownLatch(1);
+        PrefetchingQueueItemProvider<Integer> prefetcher = new PrefetchingQueueItemProvider<Integer>(
+                new IteratingProvider(null) {
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Collection<Integer> next() {
+                        fetched.countDown();
+                        return Collections.emptyList();
+                    }
+                }, 1);
+        try {
+            long start = System.currentTimeMillis();
+            Assert.assertTrue(prefetcher.hasNext());
+            Assert.assertEquals(Collections.<Integer>emptyList(), prefetcher.next());
+            long elapsed = System.currentTimeMillis() - start;
+            Assert.assertTrue("elapsed " + elapsed, elapsed >= PrefetchingQueueItemProvider.MAX_WAIT_MS - 50);
+            Assert.assertTrue(fetched.await(5, TimeUnit.SECONDS));
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void closeStopsFetchingAndReleasesBufferedBatches() throws Exception {
+        final CountDownLatch fetched = new CountDownLatch(4);
+        final List<Integer> released = new CopyOnWriteArrayList<Integer>();
+        PrefetchingQueueItemProvider<Integer> prefetcher = new PrefetchingQueueItemProvider<Integer>(
+                new IteratingProvider(null) {
+                    int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Collection<Integer> next() {
+                        fetched.countDown();
+                        return Arrays.asList(next++);
+                    }
+                }, 2).withReleaser(new QueueItemReleaser<Integer>() {
+                    @Override
+                    public void release(Collection<? extends Integer> queueItems) {
+                        released.addAll(queueItems);
+                    }
+                });
+
+        Assert.assertEquals(Arrays.asList(0), prefetcher.next());
+        // Two batches buffered, and a third blocked on the full buffer.
+        Assert.assertTrue(fetched.await(5, TimeUnit.SECONDS));
+        prefetcher.close();
+
+        Assert.assertFalse(prefetcher.hasNext());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (released.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Arrays.asList(1, 2, 3), released);
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("qs-prefetch-")) {
+                thread.join(5000);
+                Assert.assertFalse(thread.getName() + " still running", thread.isAlive());
+            }
+        }
+    }
+
+    static class IteratingProvider implements QueueItemProvider<Integer> {
+        private final Iterator<Collection<Integer>> batches;
+
+        IteratingProvider(Iterator<Collection<Integer>> batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public Iterator<Collection<Integer>> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return batches.hasNext();
+        }
+
+        @Override
+        public Collection<Integer> next() {
+            return batches.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,742 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueueReaderTest {
+
+    @Test
+    public void batchesAreRechunked() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3, 4, 5, 6, 7));
+        source.add(ImmutableList.of(8, 9));
+
+        final List<List<Integer>> seen = Collections.synchronizedList(new ArrayList<List<Integer>>());
+        final List<Integer> failed = Collections.synchronizedList(new ArrayList<Integer>());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        new QueueReader<Integer, Integer, Integer>(source, new AbstractBatchQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public List<Integer> convertAll(List<Integer> queueItems) {
+                return queueItems;
+            }
+
+            @Override
+            public void processAll(List<Integer> convertedQueueItems, BatchOutcome<Integer> outcome) {
+                for (int i = 0; i < convertedQueueItems.size(); i++) {
+                    if (convertedQueueItems.get(i) % 3 == 0) {
+                        outcome.failed(i, new RuntimeException("multiple of 3"));
+                    } else {
+                        outcome.succeeded(i, convertedQueueItems.get(i));
+                    }
+                }
+            }
+
+            @Override
+            public void onBatchSuccess(List<Integer> queueItems, List<Integer> convertedQueueItems, BatchOutcome<Integer> outcome) {
+                seen.add(queueItems);
+                for (int i = 0; i < outcome.size(); i++) {
+                    if (outcome.isFailed(i)) {
+                        failed.add(queueItems.get(i));
+                    }
+                }
+            }
+        }, executor, 0, 3).run();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(ImmutableList.of(
+                ImmutableList.of(1, 2, 3), ImmutableList.of(4, 5, 6), ImmutableList.of(7), ImmutableList.of(8, 9)
+        ), seen);
+        Assert.assertEquals(ImmutableList.of(3, 6, 9), failed);
+    }
+
+    @Test
+    public void inFlightWindowBoundsConcurrency() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            source.add(ImmutableList.of(i, i));
+        }
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer convertedQueueItem) throws InterruptedException {
+                int now = running.incrementAndGet();
+                int max;
+                while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {
+                    // retry
+                }
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return convertedQueueItem;
+            }
+        }, executor, 0).withMaxInFlight(5, 2);
+        reader.run();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 5);
+        Assert.assertEquals(0, reader.getInFlight());
+        Assert.assertEquals(5, reader.getMaxInFlight());
+    }
+
+    @Test
+    public void batchLargerThanInFlightWindowDoesNotHang() throws Exception {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11));
+        source.add(ImmutableList.of(12, 13));
+
+        final Set<Integer> handled = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) throws InterruptedException {
+                        Thread.sleep(2);
+                        handled.add(item);
+                        return item;
+                    }
+                }, executor, 0).withMaxInFlight(5, 10);
+        CompletionReport report = reader.runToCompletion();
+        executor.shutdown();
+
+        Assert.assertEquals(14, report.getItems());
+        Assert.assertEquals(14, handled.size());
+        // the overdrawn window is whole again once everything completed
+        Assert.assertEquals(0, reader.getInFlight());
+    }
+
+    @Test
+    public void asyncItemsOutnumberThreads() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            source.add(ImmutableList.of(i));
+        }
+
+        final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger maxPending = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(100);
+        final Set<Integer> failed = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        QueueReaderStats stats = new QueueReaderStats();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source, new AbstractAsyncQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public ListenableFuture<Integer> processAsync(final Integer convertedQueueItem) {
+                final SettableFuture<Integer> future = SettableFuture.create();
+                maxPending.set(Math.max(maxPending.get(), pending.incrementAndGet()));
+                io.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.decrementAndGet();
+                        future.set(convertedQueueItem);
+                    }
+                }, 20, TimeUnit.MILLISECONDS);
+                return future;
+            }
+
+            @Override
+            public void onSuccess(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                if (queueItem % 10 == 0) {
+                    throw new IllegalStateException("could not record " + queueItem);
+                }
+            }
+
+            @Override
+            public void onError(Integer queueItem, Integer convertedQueueItem, Throwable throwable) {
+                failed.add(queueItem);
+            }
+
+            @Override
+            public void onComplete(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                completed.countDown();
+            }
+        }, executor, 0, 10, 1).withMetrics(stats);
+        reader.run();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+        io.shutdown();
+
+        // a throwing onSuccess fails the item, as on the synchronous path
+        Assert.assertEquals(10, failed.size());
+        Assert.assertEquals(90, stats.snapshot().getSucceeded());
+        Assert.assertEquals(10, stats.snapshot().getFailed());
+        Assert.assertTrue("max pending " + maxPending.get(), maxPending.get() > 1 && maxPending.get() <= 10);
+    }
+
+    @Test
+    public void partitionedItemsRunInOrderPerKey() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < 60; i += 3) {
+            source.add(ImmutableList.of(i, i + 1, i + 2));
+        }
+
+        final Map<Integer, List<Integer>> seenByKey = new ConcurrentHashMap<Integer, List<Integer>>();
+        final Set<Integer> runningKeys = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        new QueueReader<Integer, Integer, Integer>(source, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer item) throws InterruptedException {
+                int key = item % 3;
+                if (!runningKeys.add(key)) {
+                    overlaps.incrementAndGet();
+                }
+                Thread.sleep(1);
+                List<Integer> seen = seenByKey.get(key);
+                if (seen == null) {
+                    seenByKey.put(key, seen = Collections.synchronizedList(new ArrayList<Integer>()));
+                }
+                seen.add(item);
+                runningKeys.remove(key);
+                return item;
+            }
+        }, executor, 0).withPartitioning(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer input) {
+                return input % 3;
+            }
+        }, 3).run();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(0, overlaps.get());
+        for (Map.Entry<Integer, List<Integer>> entry : seenByKey.entrySet()) {
+            List<Integer> seen = entry.getValue();
+            Assert.assertEquals(20, seen.size());
+            for (int i = 1; i < seen.size(); i++) {
+                Assert.assertTrue(seen.get(i - 1) < seen.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void stagesRunConvertAndProcessOnTheirOwnThreads() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < 50; i += 5) {
+            source.add(ImmutableList.of(i, i + 1, i + 2, i + 3, i + 4));
+        }
+
+        final Set<String> convertThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> processThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Stage convert = new Stage("convert", 2, 1);
+        Stage process = new Stage("process", 4, 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        new QueueReader<Integer, Integer, Integer>(source, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                convertThreads.add(Thread.currentThread().getName());
+                if (queueItem == 7) {
+                    throw new RuntimeException("unlucky");
+                }
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer item) throws InterruptedException {
+                processThreads.add(Thread.currentThread().getName());
+                Thread.sleep(1);
+                return item;
+            }
+
+            @Override
+            public void onSuccess(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                succeeded.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Integer queueItem, Integer convertedQueueItem, Throwable throwable) {
+                failed.incrementAndGet();
+            }
+        }, executor, 0).withStages(convert, process).run();
+
+        convert.shutdown();
+        Assert.assertTrue(convert.awaitTermination(10, TimeUnit.SECONDS));
+        process.shutdown();
+        Assert.assertTrue(process.awaitTermination(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Assert.assertEquals(49, succeeded.get());
+        Assert.assertEquals(1, failed.get());
+        Assert.assertEquals(50, convert.getCompleted());
+        Assert.assertEquals(49, process.getCompleted());
+        for (String name : convertThreads) {
+            Assert.assertTrue(name, name.startsWith("qs-stage-convert-"));
+        }
+        for (String name : processThreads) {
+            Assert.assertTrue(name, name.startsWith("qs-stage-process-"));
+        }
+    }
+
+    @Test
+    public void metricsCountOutcomesAndDurations() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3));
+        source.add(Collections.<Integer>emptyList());
+        source.add(ImmutableList.of(4, 5));
+
+        QueueReaderStats stats = new QueueReaderStats();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        new QueueReader<Integer, Integer, Integer>(source, new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+            @Override
+            public Integer convert(Integer queueItem) {
+                return queueItem;
+            }
+
+            @Override
+            public Integer process(Integer item) throws InterruptedException {
+                if (item == 4) {
+                    throw new RuntimeException("unlucky");
+                }
+                Thread.sleep(5);
+                return item;
+            }
+        }, executor, 0).withLeanDispatch(QueueReader.DEFAULT_CARRIER_POOL_SIZE).withMetrics(stats).run();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        QueueReaderStats.Snapshot snapshot = stats.snapshot();
+        Assert.assertEquals(4, snapshot.getSucceeded());
+        Assert.assertEquals(1, snapshot.getFailed());
+        Assert.assertEquals(3, snapshot.getReceives());
+        Assert.assertEquals(1, snapshot.getEmptyReceives());
+        Assert.assertEquals(1, snapshot.getIdleNs().getCount());
+        Assert.assertEquals(5, snapshot.getQueuedNs().getCount());
+        Assert.assertEquals(3, snapshot.getReceiveSize().getMax());
+        Assert.assertEquals(4, snapshot.getProcessNs().getCount());
+        long p50 = snapshot.getProcessNs().getPercentile(50);
+        Assert.assertTrue("p50 " + p50, p50 >= TimeUnit.MILLISECONDS.toNanos(4));
+
+        QueueReaderStats.Snapshot merged = snapshot.merge(snapshot);
+        Assert.assertEquals(8, merged.getSucceeded());
+        Assert.assertEquals(8, merged.getProcessNs().getCount());
+    }
+
+    @Test
+    public void leanDispatchOnTheCallerFinishesEachItemOnce() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3, 4));
+
+        final AtomicInteger completed = new AtomicInteger();
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) {
+                        if (item == 3) {
+                            throw new RuntimeException("unlucky");
+                        }
+                        return item;
+                    }
+
+                    @Override
+                    public void onError(Integer queueItem, Integer convertedQueueItem, Throwable throwable) {
+                        throw new IllegalStateException("onError of " + queueItem);
+                    }
+
+                    @Override
+                    public void onComplete(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                        completed.incrementAndGet();
+                        if (queueItem == 2) {
+                            throw new IllegalStateException("onComplete of " + queueItem);
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor(), 0).withLeanDispatch(QueueReader.DEFAULT_CARRIER_POOL_SIZE);
+        Assert.assertTrue(reader.isLeanDispatch());
+        reader.run();
+
+        // errors of the callbacks do not escape into dispatch, where the items would be finished a second time
+        Assert.assertEquals(4, completed.get());
+        Assert.assertEquals(0, reader.getOutstanding());
+    }
+
+    @Test
+    public void leanDispatchIsDisabledForHandlersConsumingFutures() throws InterruptedException {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3));
+
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) {
+                        return item * 10;
+                    }
+
+                    @Override
+                    public void withFuture(Integer queueItem, Future<Pair<Integer, Integer>> future) {
+                        try {
+                            results.add(future.get().getRight());
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, executor, 0).withLeanDispatch(QueueReader.DEFAULT_CARRIER_POOL_SIZE);
+        Assert.assertFalse(reader.isLeanDispatch());
+        reader.run();
+        executor.shutdown();
+
+        Assert.assertEquals(ImmutableList.of(10, 20, 30), results);
+    }
+
+    @Test
+    public void runToCompletionWaitsForInFlightItems() throws Exception {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3));
+        source.add(ImmutableList.of(4, 5));
+
+        final AtomicInteger finished = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) throws InterruptedException {
+                        Thread.sleep(20);
+                        if (item == 5) {
+                            throw new RuntimeException("unlucky");
+                        }
+                        return item;
+                    }
+
+                    @Override
+                    public void onComplete(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                        finished.incrementAndGet();
+                    }
+                }, executor, 0);
+        CompletionReport report = reader.runToCompletion();
+        executor.shutdown();
+
+        Assert.assertEquals(5, finished.get());
+        Assert.assertEquals(0, reader.getOutstanding());
+        Assert.assertEquals(5, report.getItems());
+        Assert.assertEquals(4, report.getSucceeded());
+        Assert.assertEquals(1, report.getFailed());
+        Assert.assertTrue(report.getWallTimeMs() >= 40);
+        Assert.assertTrue(report.getThroughput() > 0);
+        Assert.assertEquals(4, report.getStats().getProcessNs().getCount());
+    }
+
+    @Test
+    public void shutdownReleasesUnstartedItemsAndWaitsForRunningOnes() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Collection<Integer>> released = Collections.synchronizedList(new ArrayList<Collection<Integer>>());
+
+        ExternalQueueItemProvider<Integer> provider = new ExternalQueueItemProvider<Integer>(
+                new LinkedBlockingQueue<Integer>(), 10L, TimeUnit.MILLISECONDS, 10);
+        provider.putAll(ImmutableList.of(1, 2, 3, 4));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(provider,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) throws InterruptedException {
+                        started.countDown();
+                        proceed.await();
+                        handled.add(item);
+                        return item;
+                    }
+                }, executor, 10).withReleaser(new QueueItemReleaser<Integer>() {
+            @Override
+            public void release(Collection<? extends Integer> queueItems) {
+                released.add(new ArrayList<Integer>(queueItems));
+            }
+        });
+        Thread readerThread = new Thread(reader);
+        readerThread.start();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // proceed anyway
+                }
+                proceed.countDown();
+            }
+        }.start();
+        Assert.assertTrue(reader.shutdown(5, TimeUnit.SECONDS));
+        readerThread.join(1000);
+        executor.shutdown();
+
+        Assert.assertFalse(readerThread.isAlive());
+        Assert.assertEquals(ImmutableList.of(1), handled);
+        Assert.assertEquals(1, released.size());
+        Assert.assertEquals(ImmutableList.of(2, 3, 4), released.get(0));
+        Assert.assertEquals(0, reader.getOutstanding());
+    }
+
+    @Test
+    public void deadlineInterruptsHungItemAndReportsWhereItWasStuck() throws Exception {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2));
+
+        final Map<Integer, Throwable> errors = new ConcurrentHashMap<Integer, Throwable>();
+        final List<Integer> succeeded = Collections.synchronizedList(new ArrayList<Integer>());
+        HashedWheelTimer timer = new HashedWheelTimer("test-deadlines", 10, TimeUnit.MILLISECONDS, 64);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) {
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) throws InterruptedException {
+                        // the first hangs, the second runs on the same thread after it was interrupted
+                        Thread.sleep(item == 1 ? 10000 : 20);
+                        return item;
+                    }
+
+                    @Override
+                    public void onSuccess(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                        succeeded.add(queueItem);
+                    }
+
+                    @Override
+                    public void onError(Integer queueItem, Integer convertedQueueItem, Throwable throwable) {
+                        errors.put(queueItem, throwable);
+                    }
+                }, executor, 0).withDeadline(100, TimeUnit.MILLISECONDS, timer);
+        long start = System.currentTimeMillis();
+        reader.runToCompletion();
+        long elapsed = System.currentTimeMillis() - start;
+        executor.shutdown();
+        timer.close();
+
+        Assert.assertTrue("elapsed " + elapsed, elapsed < 5000);
+        Assert.assertEquals(ImmutableList.of(2), succeeded);
+        Throwable error = errors.get(1);
+        Assert.assertTrue(String.valueOf(error), error instanceof ItemDeadlineException);
+        Assert.assertTrue(error.getCause() instanceof InterruptedException);
+        Assert.assertEquals("sleep", error.getStackTrace()[0].getMethodName());
+    }
+
+    @Test
+    public void asyncDeadlineFailsHungItemsWithoutLeakingInterrupts() throws Exception {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3));
+
+        final Map<Integer, Throwable> errors = new ConcurrentHashMap<Integer, Throwable>();
+        final List<Integer> succeeded = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> interruptedOnEntry = Collections.synchronizedList(new ArrayList<Integer>());
+        final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+        HashedWheelTimer timer = new HashedWheelTimer("test-deadlines", 10, TimeUnit.MILLISECONDS, 64);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractAsyncQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) throws InterruptedException {
+                        if (Thread.currentThread().isInterrupted()) {
+                            interruptedOnEntry.add(queueItem);
+                        }
+                        // the first hangs before its future even exists, the others run on the same thread after it
+                        if (queueItem == 1) {
+                            Thread.sleep(10000);
+                        }
+                        return queueItem;
+                    }
+
+                    @Override
+                    public ListenableFuture<Integer> processAsync(final Integer item) {
+                        final SettableFuture<Integer> future = SettableFuture.create();
+                        // the third never completes
+                        if (item == 2) {
+                            io.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    future.set(item);
+                                }
+                            }, 20, TimeUnit.MILLISECONDS);
+                        }
+                        return future;
+                    }
+
+                    @Override
+                    public void onSuccess(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                        succeeded.add(queueItem);
+                    }
+
+                    @Override
+                    public void onError(Integer queueItem, Integer convertedQueueItem, Throwable throwable) {
+                        errors.put(queueItem, throwable);
+                    }
+                }, executor, 0, 10, 10).withDeadline(100, TimeUnit.MILLISECONDS, timer);
+        long start = System.currentTimeMillis();
+        reader.runToCompletion();
+        long elapsed = System.currentTimeMillis() - start;
+        executor.shutdown();
+        io.shutdown();
+        timer.close();
+
+        Assert.assertTrue("elapsed " + elapsed, elapsed < 5000);
+        Assert.assertEquals(ImmutableList.of(2), succeeded);
+        Assert.assertTrue(interruptedOnEntry.toString(), interruptedOnEntry.isEmpty());
+        Throwable hungConvert = errors.get(1);
+        Assert.assertTrue(String.valueOf(hungConvert), hungConvert instanceof ItemDeadlineException);
+        Assert.assertTrue(hungConvert.getCause() instanceof InterruptedException);
+        Throwable hungFuture = errors.get(3);
+        Assert.assertTrue(String.valueOf(hungFuture), hungFuture instanceof ItemDeadlineException);
+        Assert.assertTrue(hungFuture.getCause() instanceof CancellationException);
+    }
+
+    @Test
+    public void stagedDeadlineAppliesPerStageWithoutLeakingInterrupts() throws Exception {
+        List<Collection<Integer>> source = new ArrayList<Collection<Integer>>();
+        source.add(ImmutableList.of(1, 2, 3));
+
+        final Map<Integer, Throwable> errors = new ConcurrentHashMap<Integer, Throwable>();
+        final List<Integer> succeeded = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> interruptedOnEntry = Collections.synchronizedList(new ArrayList<Integer>());
+        HashedWheelTimer timer = new HashedWheelTimer("test-deadlines", 10, TimeUnit.MILLISECONDS, 64);
+        Stage convert = new Stage("convert", 1, 4);
+        Stage process = new Stage("process", 1, 4);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueueReader<Integer, Integer, Integer> reader = new QueueReader<Integer, Integer, Integer>(source,
+                new AbstractQueueItemHandler<Integer, Integer, Integer>() {
+                    @Override
+                    public Integer convert(Integer queueItem) throws InterruptedException {
+                        if (Thread.currentThread().isInterrupted()) {
+                            interruptedOnEntry.add(queueItem);
+                        }
+                        // the third hangs in conversion
+                        if (queueItem == 3) {
+                            Thread.sleep(10000);
+                        }
+                        return queueItem;
+                    }
+
+                    @Override
+                    public Integer process(Integer item) throws InterruptedException {
+                        if (Thread.currentThread().isInterrupted()) {
+                            interruptedOnEntry.add(item);
+                        }
+                        // the first hangs in processing, the second follows it on the same stage thread
+                        Thread.sleep(item == 1 ? 10000 : 20);
+                        return item;
+                    }
+
+                    @Override
+                    public void onSuccess(Integer queueItem, Integer convertedQueueItem, Integer result) {
+                        succeeded.add(queueItem);
+                    }
+
+                    @Override
+                    public void onError(Integer queueItem, Integer convertedQueueItem, Throwable throwable) {
+                        errors.put(queueItem, throwable);
+                    }
+                }, executor, 0).withStages(convert, process).withDeadline(100, TimeUnit.MILLISECONDS, timer);
+        long start = System.currentTimeMillis();
+        reader.runToCompletion();
+        long elapsed = System.currentTimeMillis() - start;
+        convert.shutdown();
+        process.shutdown();
+        executor.shutdown();
+        timer.close();
+
+        Assert.assertTrue("elapsed " + elapsed, elapsed < 5000);
+        Assert.assertEquals(ImmutableList.of(2), succeeded);
+        Assert.assertTrue(interruptedOnEntry.toString(), interruptedOnEntry.isEmpty());
+        for (int item : new int[]{1, 3}) {
+            Throwable error = errors.get(item);
+            Assert.assertTrue(item + ": " + error, error instanceof ItemDeadlineException);
+            Assert.assertTrue(error.getCause() instanceof InterruptedException);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.qs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class RingBufferQueueItemProviderTest {
+
+    @Test
+    public void capacityIsRoundedToPowerOfTwo() {
+        Assert.assertEquals(1, new RingBufferQueueItemProvider<Integer>(1, null, null, 1, RingBufferQueueItemProvider.WaitStrategy.YIELD).getCapacity());
+        Assert.assertEquals(8, new RingBufferQueueItemProvider<Integer>(5, null, null, 1, RingBufferQueueItemProvider.WaitStrategy.YIELD).getCapacity());
+        Assert.assertEquals(8, new RingBufferQueueItemProvider<Integer>(8, null, null, 1, RingBufferQueueItemProvider.WaitStrategy.YIELD).getCapacity());
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        RingBufferQueueItemProvider<Integer> provider = new RingBufferQueueItemProvider<Integer>(
+                2, null, null, 10, RingBufferQueueItemProvider.WaitStrategy.YIELD);
+        Assert.assertTrue(provider.offer(1));
+        Assert.assertTrue(provider.offer(2));
+        Assert.assertFalse(provider.offer(3));
+        Assert.assertEquals(2, provider.next().size());
+        Assert.assertTrue(provider.offer(3));
+        Assert.assertEquals(3, (int) provider.next().get(0));
+        Assert.assertTrue(provider.next().isEmpty());
+    }
+
+    @Test
+    public void everyItemFromManyProducersArrivesOnce() throws InterruptedException {
+        final int producers = 8, perProducer = 100000;
+        final RingBufferQueueItemProvider<Integer> provider = new RingBufferQueueItemProvider<Integer>(
+                64, 10L, TimeUnit.MILLISECONDS, 16, RingBufferQueueItemProvider.WaitStrategy.PARK);
+
+        ExecutorService threads = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            final int offset = p * perProducer;
+            threads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perProducer; i++) {
+                            provider.put(offset + i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        boolean[] seen = new boolean[producers * perProducer];
+        int[] lastPerProducer = new int[producers];
+        Arrays.fill(lastPerProducer, -1);
+        int received = 0;
+        while (received < seen.length) {
+            List<Integer> batch = provider.next();
+            Assert.assertTrue(batch.size() <= 16);
+            for (Integer item : batch) {
+                Assert.assertFalse("duplicate " + item, seen[item]);
+                seen[item] = true;
+                // each producer's items arrive in the order it put them
+                Assert.assertTrue(item % perProducer > lastPerProducer[item / perProducer]);
+                lastPerProducer[item / perProducer] = item % perProducer;
+                ++received;
+            }
+        }
+        threads.shutdown();
+        Assert.assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(provider.next().isEmpty());
+    }
+}